@@ -0,0 +1,147 @@
+package com.lenderman.nabu.adapter.utilities;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the List<Byte> Cycle CRC table loop with the byte[] slice-by-8 one,
+ * on packet sized and segment sized buffers.
+ * 
+ * Run with: gradlew benchmark
+ */
+public class CRCBenchmark
+{
+    /**
+     * Rounds run before measuring, so the JIT has compiled everything
+     */
+    private static final int WarmupRounds = 5;
+
+    /**
+     * Rounds measured
+     */
+    private static final int Rounds = 10;
+
+    /**
+     * Bytes checksummed per round
+     */
+    private static final int BytesPerRound = 32 * 1024 * 1024;
+
+    /**
+     * Keeps the JIT from throwing the results away
+     */
+    private static int sink;
+
+    /**
+     * Entry point
+     * 
+     * @param args ignored
+     */
+    public static void main(String[] args)
+    {
+        Random random = new Random(0x5816);
+
+        for (int size : new int[]
+        { 1009, 65535 })
+        {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            List<Byte> list = new ArrayList<Byte>(size);
+            for (byte b : data)
+            {
+                list.add(b);
+            }
+
+            // All of them have to agree before any of them is worth timing
+            byte[] expected = CRC.calculateCycleCRC(list);
+            if (!Arrays.equals(expected, CRC.calculateCycleCRC(data, 0, size))
+                    || !Arrays.equals(expected,
+                            CRC.finishCycleCRC(bytewise(data))))
+            {
+                throw new IllegalStateException("CRC mismatch");
+            }
+
+            int iterations = Math.max(1, BytesPerRound / size);
+            System.out.println("Buffer of " + size + " bytes");
+            report("List<Byte> table loop", iterations, size,
+                    () -> sink ^= CRC.calculateCycleCRC(list)[0]);
+            report("byte[] slice-by-8", iterations, size,
+                    () -> sink ^= CRC.calculateCycleCRC(data, 0, size)[0]);
+            System.out.println();
+        }
+        System.out.println("(" + sink + ")");
+    }
+
+    /**
+     * CRC of the data fed one byte at a time, which only uses the single
+     * table, to check the slices against
+     * 
+     * @param data
+     * @return CRC state
+     */
+    private static int bytewise(byte[] data)
+    {
+        int crc = CRC.startCycleCRC();
+        for (int i = 0; i < data.length; i++)
+        {
+            crc = CRC.updateCycleCRC(crc, data, i, 1);
+        }
+        return crc;
+    }
+
+    /**
+     * Time a calculation and print its throughput
+     * 
+     * @param name
+     * @param iterations calculations per round
+     * @param size bytes per calculation
+     * @param calculation
+     */
+    private static void report(String name, int iterations, int size,
+            Runnable calculation)
+    {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < WarmupRounds + Rounds; round++)
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                calculation.run();
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round >= WarmupRounds)
+            {
+                best = Math.min(best, elapsed);
+            }
+        }
+
+        double megabytes = (double) iterations * size / (1024 * 1024);
+        System.out.println(String.format("  %-24s %10.1f MB/s", name,
+                megabytes / (best / 1e9)));
+    }
+}
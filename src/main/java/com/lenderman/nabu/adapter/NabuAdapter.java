@@ -23,9 +23,11 @@ package com.lenderman.nabu.adapter;
  * SOFTWARE.
  */
 
+import java.nio.file.Paths;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import com.lenderman.nabu.adapter.model.settings.Settings;
+import com.lenderman.nabu.adapter.server.CycleCompiler;
 import com.lenderman.nabu.adapter.server.NabuServer;
 
 public class NabuAdapter
@@ -41,10 +43,39 @@ public class NabuAdapter
      */
     public static void main(String[] args)
     {
+        Settings settings = new Settings(args);
+        if (settings.getCompileOutput() != null)
+        {
+            compile(settings);
+            return;
+        }
+
         logger.info("Starting NABU Adapter");
         // Create the server with command line args
-        NabuServer server = new NabuServer(new Settings(args));
+        NabuServer server = new NabuServer(settings);
         server.runServer();
         logger.info("Terminating NABU Adapter");
     }
+
+    /**
+     * Compile the local path into a bundle instead of serving it
+     * 
+     * @param Settings settings
+     */
+    private static void compile(Settings settings)
+    {
+        boolean compiled = false;
+        try
+        {
+            compiled = new CycleCompiler(
+                    Runtime.getRuntime().availableProcessors()).compile(
+                            Paths.get(settings.getPath()),
+                            Paths.get(settings.getCompileOutput()));
+        }
+        catch (Exception ex)
+        {
+            logger.error("Could not compile {}", settings.getPath(), ex);
+        }
+        System.exit(compiled ? 0 : 1);
+    }
 }
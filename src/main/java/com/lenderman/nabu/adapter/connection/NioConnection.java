@@ -0,0 +1,436 @@
+package com.lenderman.nabu.adapter.connection;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A NABU connection serviced by an NioEventLoop. The event loop moves bytes
+ * between the channel and this connection's read and write buffers, so no
+ * thread ever blocks on the socket itself.
+ */
+public class NioConnection implements Connection
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager
+            .getLogger(NioConnection.class);
+
+    /**
+     * Size of the per-connection read and initial write buffers
+     */
+    private static final int BufferSize = 8192;
+
+    /**
+     * Channel to the NABU
+     */
+    private SocketChannel channel;
+
+    /**
+     * Event loop that owns this connection
+     */
+    private NioEventLoop eventLoop;
+
+    /**
+     * Selection key, only touched on the event loop thread
+     */
+    private SelectionKey key;
+
+    /**
+     * Bytes read from the channel that have not been consumed yet
+     */
+    private ByteBuffer readBuffer = ByteBuffer.allocate(BufferSize);
+
+    /**
+     * Lock guarding the write buffer, which grows when needed
+     */
+    private Object writeLock = new Object();
+
+    /**
+     * Bytes written for the NABU that have not gone out on the channel yet
+     */
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(BufferSize);
+
+    /**
+     * Whether the event loop already has a write pending for this connection
+     */
+    private boolean writeScheduled;
+
+    /**
+     * Whether this connection has been closed
+     */
+    private volatile boolean closed;
+
+    /**
+     * Receives bytes as soon as they are read, instead of them waiting in the
+     * read buffer. Only touched on the event loop thread.
+     */
+    private Consumer<byte[]> receiver;
+
+    /**
+     * Run once when the connection closes, if bytes are being pushed
+     */
+    private volatile Runnable closeHandler;
+
+    /**
+     * Read stream backed by the read buffer
+     */
+    private InputStream nabuInputStream = new InputStream()
+    {
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return NioConnection.this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            return NioConnection.this.read(b, off, len);
+        }
+
+        @Override
+        public int available()
+        {
+            synchronized (readBuffer)
+            {
+                return readBuffer.position();
+            }
+        }
+    };
+
+    /**
+     * Write stream backed by the write buffer
+     */
+    private OutputStream nabuOutputStream = new OutputStream()
+    {
+        @Override
+        public void write(int b) throws IOException
+        {
+            NioConnection.this.write(new byte[]
+            { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            NioConnection.this.write(b, off, len);
+        }
+    };
+
+    /**
+     * Constructor
+     */
+    NioConnection(SocketChannel channel, NioEventLoop eventLoop)
+    {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStream getNabuInputStream()
+    {
+        return nabuInputStream;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputStream getNabuOutputStream()
+    {
+        return nabuOutputStream;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isConnected()
+    {
+        return !closed && channel.isOpen();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startServer() throws Exception
+    {
+        // The listener already accepted this connection
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stopServer()
+    {
+        closed = true;
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not close channel", e);
+        }
+        synchronized (readBuffer)
+        {
+            readBuffer.notifyAll();
+        }
+
+        Runnable handler = closeHandler;
+        closeHandler = null;
+        if (handler != null)
+        {
+            handler.run();
+        }
+    }
+
+    /**
+     * Push bytes to the receiver as they arrive rather than having a thread
+     * wait on the input stream. Anything already buffered is pushed first.
+     * 
+     * @param Consumer<byte[]> receiver called on the event loop thread
+     * @param Runnable closeHandler called once the connection closes
+     */
+    public void setReceiver(Consumer<byte[]> receiver, Runnable closeHandler)
+    {
+        this.closeHandler = closeHandler;
+        eventLoop.execute(() -> {
+            this.receiver = receiver;
+            this.pushReceived();
+            this.resumeReading();
+        });
+        if (closed)
+        {
+            this.stopServer();
+        }
+    }
+
+    /**
+     * Hand everything in the read buffer to the receiver, called on the event
+     * loop thread
+     */
+    private void pushReceived()
+    {
+        byte[] data;
+        synchronized (readBuffer)
+        {
+            if (readBuffer.position() == 0)
+            {
+                return;
+            }
+            readBuffer.flip();
+            data = new byte[readBuffer.remaining()];
+            readBuffer.get(data);
+            readBuffer.clear();
+        }
+        receiver.accept(data);
+    }
+
+    /**
+     * Register with the selector, called on the event loop thread
+     * 
+     * @param Selector selector
+     */
+    void register(Selector selector) throws IOException
+    {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * The channel has data for us, called on the event loop thread
+     */
+    void onReadable() throws IOException
+    {
+        synchronized (readBuffer)
+        {
+            if (channel.read(readBuffer) < 0)
+            {
+                throw new IOException("End of stream");
+            }
+
+            // Stop reading until the NABU server catches up
+            if (receiver == null && !readBuffer.hasRemaining())
+            {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            readBuffer.notifyAll();
+        }
+
+        if (receiver != null)
+        {
+            this.pushReceived();
+        }
+    }
+
+    /**
+     * The channel can take more data, called on the event loop thread
+     */
+    void onWritable() throws IOException
+    {
+        synchronized (writeLock)
+        {
+            writeBuffer.flip();
+            channel.write(writeBuffer);
+            writeBuffer.compact();
+
+            if (key == null || !key.isValid())
+            {
+                return;
+            }
+            if (writeBuffer.position() == 0)
+            {
+                writeScheduled = false;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            else
+            {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Read from the read buffer, waiting for the event loop if it is empty
+     */
+    private int read(byte[] b, int off, int len) throws IOException
+    {
+        synchronized (readBuffer)
+        {
+            while (readBuffer.position() == 0 && !closed)
+            {
+                try
+                {
+                    readBuffer.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (readBuffer.position() == 0)
+            {
+                return -1;
+            }
+
+            boolean wasFull = !readBuffer.hasRemaining();
+            readBuffer.flip();
+            int count = Math.min(len, readBuffer.remaining());
+            readBuffer.get(b, off, count);
+            readBuffer.compact();
+
+            if (wasFull)
+            {
+                eventLoop.execute(this::resumeReading);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Start reading from the channel again, called on the event loop thread
+     */
+    private void resumeReading()
+    {
+        if (key != null && key.isValid())
+        {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Queue bytes for the NABU and have the event loop send them
+     */
+    private void write(byte[] b, int off, int len) throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Connection closed");
+        }
+
+        synchronized (writeLock)
+        {
+            if (writeBuffer.remaining() < len)
+            {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(
+                        writeBuffer.capacity() * 2, writeBuffer.position() + len));
+                writeBuffer.flip();
+                larger.put(writeBuffer);
+                writeBuffer = larger;
+            }
+            writeBuffer.put(b, off, len);
+
+            if (writeScheduled)
+            {
+                return;
+            }
+            writeScheduled = true;
+        }
+
+        if (eventLoop.inEventLoop())
+        {
+            // Already on the event loop, no need to queue a task
+            this.sendWrites();
+        }
+        else
+        {
+            eventLoop.execute(this::sendWrites);
+        }
+    }
+
+    /**
+     * Send queued bytes, closing the connection if that fails. Called on the
+     * event loop thread.
+     */
+    private void sendWrites()
+    {
+        try
+        {
+            this.onWritable();
+        }
+        catch (IOException e)
+        {
+            logger.debug("Could not write to NABU: {}", e.getMessage());
+            this.stopServer();
+        }
+    }
+}
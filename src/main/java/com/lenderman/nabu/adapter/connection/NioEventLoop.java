@@ -0,0 +1,215 @@
+package com.lenderman.nabu.adapter.connection;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A single selector thread that services the reads and writes of many NABU
+ * connections. Anything that touches a selection key is queued up and run on
+ * this thread.
+ */
+public class NioEventLoop implements Runnable
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager
+            .getLogger(NioEventLoop.class);
+
+    /**
+     * Selector for all of the connections owned by this loop
+     */
+    private Selector selector;
+
+    /**
+     * Work handed to this loop from other threads
+     */
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * The event loop thread
+     */
+    private Thread thread;
+
+    /**
+     * Constructor
+     * 
+     * @param String name name of the event loop thread
+     */
+    public NioEventLoop(String name) throws IOException
+    {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Start the event loop thread
+     */
+    public void start()
+    {
+        thread.start();
+    }
+
+    /**
+     * Stop the event loop, closing the selector
+     */
+    public void stop()
+    {
+        execute(() -> {
+            for (SelectionKey key : selector.keys())
+            {
+                ((NioConnection) key.attachment()).stopServer();
+            }
+            try
+            {
+                selector.close();
+            }
+            catch (IOException e)
+            {
+                logger.error("Could not close selector", e);
+            }
+        });
+    }
+
+    /**
+     * Run the task on the event loop thread
+     * 
+     * @param Runnable task
+     */
+    public void execute(Runnable task)
+    {
+        tasks.add(task);
+        if (Thread.currentThread() != thread)
+        {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Indicate if the caller is running on the event loop thread
+     * 
+     * @return boolean
+     */
+    public boolean inEventLoop()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Hand an accepted channel to this event loop
+     * 
+     * @param SocketChannel channel
+     * @return NioConnection
+     */
+    public NioConnection register(SocketChannel channel) throws IOException
+    {
+        channel.configureBlocking(false);
+        NioConnection connection = new NioConnection(channel, this);
+        execute(() -> {
+            try
+            {
+                connection.register(selector);
+            }
+            catch (IOException e)
+            {
+                logger.error("Could not register NABU connection", e);
+                connection.stopServer();
+            }
+        });
+        return connection;
+    }
+
+    /**
+     * Main selector loop
+     */
+    @Override
+    public void run()
+    {
+        while (selector.isOpen())
+        {
+            try
+            {
+                selector.select();
+                runTasks();
+                if (!selector.isOpen())
+                {
+                    break;
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key
+                            .attachment();
+                    try
+                    {
+                        if (key.isValid() && key.isReadable())
+                        {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable())
+                        {
+                            connection.onWritable();
+                        }
+                    }
+                    catch (Exception ex)
+                    {
+                        logger.debug("NABU connection closed: {}",
+                                ex.getMessage());
+                        connection.stopServer();
+                    }
+                }
+            }
+            catch (Exception ex)
+            {
+                logger.error("Exception in event loop", ex);
+            }
+        }
+    }
+
+    /**
+     * Run everything queued for this loop
+     */
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+        {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.lenderman.nabu.adapter.connection;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.lenderman.nabu.adapter.model.settings.Settings;
+
+/**
+ * Keeps a single non-blocking TCP/IP listener open and spreads the accepted
+ * emulator connections over a handful of NioEventLoop threads.
+ */
+public class NioListener implements ConnectionListener
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager
+            .getLogger(NioListener.class);
+
+    /**
+     * Program settings
+     */
+    private Settings settings;
+
+    /**
+     * Server channel that accepts new NABU connections
+     */
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * Event loops that service the accepted connections
+     */
+    private NioEventLoop[] eventLoops;
+
+    /**
+     * Index of the event loop that gets the next connection
+     */
+    private int nextEventLoop;
+
+    /**
+     * Constructor
+     */
+    public NioListener(Settings settings)
+    {
+        this.settings = settings;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isListening()
+    {
+        return serverChannel != null && serverChannel.isOpen();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void start() throws Exception
+    {
+        eventLoops = new NioEventLoop[settings.getEventLoops()];
+        for (int i = 0; i < eventLoops.length; i++)
+        {
+            eventLoops[i] = new NioEventLoop("nabu-event-loop-" + i);
+            eventLoops[i].start();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReceiveBufferSize(8192);
+        serverChannel.bind(new InetSocketAddress(
+                Integer.parseInt(this.settings.getPort())));
+        logger.debug("Listening with {} event loops", eventLoops.length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Connection accept() throws Exception
+    {
+        SocketChannel channel = serverChannel.accept();
+        channel.socket().setSendBufferSize(8192);
+        channel.socket().setReceiveBufferSize(8192);
+        channel.socket().setSoLinger(false, 0);
+
+        NioEventLoop eventLoop = eventLoops[nextEventLoop];
+        nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+        return eventLoop.register(channel);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stop()
+    {
+        try
+        {
+            serverChannel.close();
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not close server channel", e);
+        }
+        for (NioEventLoop eventLoop : eventLoops)
+        {
+            eventLoop.stop();
+        }
+    }
+}
@@ -63,6 +63,15 @@ public class TcpConnection implements Connection
         this.settings = settings;
     }
 
+    /**
+     * Constructor for a socket that has already been accepted by a
+     * TcpListener
+     */
+    public TcpConnection(Socket socket)
+    {
+        this.socket = socket;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -110,10 +119,14 @@ public class TcpConnection implements Connection
     @Override
     public void startServer() throws Exception
     {
-        serverSocket = new ServerSocket(
-                Integer.parseInt(this.settings.getPort()));
-        serverSocket.setReceiveBufferSize(8192);
-        socket = serverSocket.accept();
+        // If we were handed an accepted socket, there is nothing to listen on
+        if (settings != null)
+        {
+            serverSocket = new ServerSocket(
+                    Integer.parseInt(this.settings.getPort()));
+            serverSocket.setReceiveBufferSize(8192);
+            socket = serverSocket.accept();
+        }
         socket.setSendBufferSize(8192);
         socket.setReceiveBufferSize(8192);
         socket.setSoLinger(false, 0);
@@ -133,13 +146,16 @@ public class TcpConnection implements Connection
         {
             logger.error("Could not close socket", e);
         }
-        try
-        {
-            serverSocket.close();
-        }
-        catch (IOException e)
+        if (serverSocket != null)
         {
-            logger.error("Could not close server socket", e);
+            try
+            {
+                serverSocket.close();
+            }
+            catch (IOException e)
+            {
+                logger.error("Could not close server socket", e);
+            }
         }
     }
 }
@@ -0,0 +1,106 @@
+package com.lenderman.nabu.adapter.connection;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.lenderman.nabu.adapter.model.settings.Settings;
+
+/**
+ * Keeps a single TCP/IP listener open and hands out a connection for every
+ * emulator that connects to it.
+ */
+public class TcpListener implements ConnectionListener
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager
+            .getLogger(TcpListener.class);
+
+    /**
+     * Program settings
+     */
+    private Settings settings;
+
+    /**
+     * TCP/IP Server Socket
+     */
+    private ServerSocket serverSocket;
+
+    /**
+     * Constructor
+     */
+    public TcpListener(Settings settings)
+    {
+        this.settings = settings;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isListening()
+    {
+        return serverSocket != null && !serverSocket.isClosed();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void start() throws Exception
+    {
+        serverSocket = new ServerSocket(
+                Integer.parseInt(this.settings.getPort()));
+        serverSocket.setReceiveBufferSize(8192);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Connection accept() throws Exception
+    {
+        return new TcpConnection(serverSocket.accept());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stop()
+    {
+        try
+        {
+            serverSocket.close();
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not close server socket", e);
+        }
+    }
+}
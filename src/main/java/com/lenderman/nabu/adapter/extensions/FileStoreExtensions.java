@@ -188,6 +188,16 @@ public class FileStoreExtensions implements ServerExtension
         this.initialize();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getOpenHandles()
+    {
+        return (int) fileHandles.values().stream()
+                .filter(Optional::isPresent).count();
+    }
+
     /**
      * Initialize the extension - setup the member variables.
      */
@@ -36,6 +36,7 @@ import com.lenderman.nabu.adapter.model.settings.Target;
 import com.lenderman.nabu.adapter.model.settings.Target.TargetEnum;
 import com.lenderman.nabu.adapter.server.NabuServer;
 import com.lenderman.nabu.adapter.server.ServerInputOutputController;
+import com.lenderman.nabu.adapter.stream.IncompleteRequestException;
 
 public class HeadlessExtension implements ServerExtension
 {
@@ -90,7 +91,7 @@ public class HeadlessExtension implements ServerExtension
      * @return true if we acted on this opCode, false otherwise.
      */
     @Override
-    public boolean tryProcessCommand(int opCode)
+    public boolean tryProcessCommand(int opCode) throws Exception
     {
         try
         {
@@ -114,6 +115,11 @@ public class HeadlessExtension implements ServerExtension
                 return true;
             }
         }
+        catch (IncompleteRequestException ex)
+        {
+            // The rest of the request has not arrived yet
+            throw ex;
+        }
         catch (Exception ex)
         {
             logger.error("Could not process command: ", ex);
@@ -20,19 +20,19 @@ import org.apache.commons.io.filefilter.WildcardFileFilter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import com.lenderman.nabu.adapter.loader.WebLoader;
+import com.lenderman.nabu.adapter.metrics.Metrics;
 import com.lenderman.nabu.adapter.model.file.FileDetails;
 import com.lenderman.nabu.adapter.model.file.FileHandle;
 import com.lenderman.nabu.adapter.model.file.flags.ErrorFlagsNHACP.ErrorNHACP;
 import com.lenderman.nabu.adapter.model.file.flags.FileFlagsNHACP.OpenFlagsNHACP;
 import com.lenderman.nabu.adapter.model.file.flags.FileFlagsNHACP.SeekFlagsNHACP;
 import com.lenderman.nabu.adapter.model.nhacp.NHACPFrame;
+import com.lenderman.nabu.adapter.model.nhacp.NHACPFrameEncoder;
 import com.lenderman.nabu.adapter.model.nhacp.NHACPSession;
 import com.lenderman.nabu.adapter.model.nhacp.NHACPStartMessage;
 import com.lenderman.nabu.adapter.model.nhacp.NHACPStartResponse;
 import com.lenderman.nabu.adapter.model.settings.Settings;
 import com.lenderman.nabu.adapter.server.ServerInputOutputController;
-import com.lenderman.nabu.adapter.stream.ByteOutputStreamHolder;
-import com.lenderman.nabu.adapter.utilities.CRC;
 import com.lenderman.nabu.adapter.utilities.ConversionUtils;
 import com.lenderman.nabu.adapter.utilities.WebUtils;
 
@@ -138,6 +138,7 @@ public class NHACPExtension implements ServerExtension
             logger.debug("NHACPFrame opcode is {}",
                     String.format("%08x", frame.getOpCode()));
 
+            long start = System.nanoTime();
             switch (frame.getOpCode())
             {
             case 0x0:
@@ -201,6 +202,8 @@ public class NHACPExtension implements ServerExtension
                 this.goodbye(frame);
                 break;
             }
+            Metrics.recordNhacpRequest(frame.getOpCode(),
+                    System.nanoTime() - start);
 
             return true;
         }
@@ -217,6 +220,29 @@ public class NHACPExtension implements ServerExtension
         this.initialize();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getOpenSessions()
+    {
+        return (int) sessions.values().stream().filter(Optional::isPresent)
+                .count();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getOpenHandles()
+    {
+        return sessions.values().stream().filter(Optional::isPresent)
+                .mapToInt(session -> (int) session.get().getFileHandles()
+                        .values().stream().filter(Optional::isPresent)
+                        .count())
+                .sum();
+    }
+
     /**
      * Initialize this NHACP Session
      * 
@@ -270,8 +296,7 @@ public class NHACPExtension implements ServerExtension
         // Get the Session
         NHACPSession session = this.sessions.get(frame.getSessionId()).get();
 
-        ByteOutputStreamHolder outgoingFrame = ByteOutputStreamHolder
-                .newStream();
+        NHACPFrameEncoder outgoingFrame = new NHACPFrameEncoder();
 
         // Get the index
         int fileHandle = frame.getMemoryStream().readByte();
@@ -348,8 +373,7 @@ public class NHACPExtension implements ServerExtension
         // no data buffered
         outgoingFrame.writeInt(Files.size(FileHandle.getFullFilename()));
 
-        this.writeFrame(session.getSettings().isCrc(),
-                outgoingFrame.getBytes());
+        this.writeFrame(session.getSettings().isCrc(), outgoingFrame);
     }
 
     /**
@@ -362,8 +386,7 @@ public class NHACPExtension implements ServerExtension
         // Get the Session
         NHACPSession session = this.sessions.get(frame.getSessionId()).get();
 
-        ByteOutputStreamHolder outgoingFrame = ByteOutputStreamHolder
-                .newStream();
+        NHACPFrameEncoder outgoingFrame = new NHACPFrameEncoder();
 
         // Get the index
         int fileHandle = frame.getMemoryStream().readByte();
@@ -399,8 +422,7 @@ public class NHACPExtension implements ServerExtension
             // write out the data
             outgoingFrame.writeBytes(data);
 
-            this.writeFrame(session.getSettings().isCrc(),
-                    outgoingFrame.getBytes());
+            this.writeFrame(session.getSettings().isCrc(), outgoingFrame);
         }
         else
         {
@@ -423,8 +445,7 @@ public class NHACPExtension implements ServerExtension
         // Get the Session
         NHACPSession session = this.sessions.get(frame.getSessionId()).get();
 
-        ByteOutputStreamHolder outgoingFrame = ByteOutputStreamHolder
-                .newStream();
+        NHACPFrameEncoder outgoingFrame = new NHACPFrameEncoder();
 
         // Get the index
         int fileHandle = frame.getMemoryStream().readByte();
@@ -475,8 +496,7 @@ public class NHACPExtension implements ServerExtension
             Files.write(FileHandle.get().getFullFilename(), bytes2);
 
             outgoingFrame.writeBytes(0x81);
-            this.writeFrame(session.getSettings().isCrc(),
-                    outgoingFrame.getBytes());
+            this.writeFrame(session.getSettings().isCrc(), outgoingFrame);
         }
         else
         {
@@ -496,8 +516,7 @@ public class NHACPExtension implements ServerExtension
     {
         // Get the Session
         NHACPSession session = this.sessions.get(frame.getSessionId()).get();
-        ByteOutputStreamHolder outgoingFrame = ByteOutputStreamHolder
-                .newStream();
+        NHACPFrameEncoder outgoingFrame = new NHACPFrameEncoder();
         LocalDateTime now = LocalDateTime.now();
 
         String date = dateFormatter.format(now);
@@ -505,8 +524,7 @@ public class NHACPExtension implements ServerExtension
         outgoingFrame.writeBytes(0x85);
         outgoingFrame.writeBytes(date.getBytes());
         outgoingFrame.writeBytes(time.getBytes());
-        this.writeFrame(session.getSettings().isCrc(),
-                outgoingFrame.getBytes());
+        this.writeFrame(session.getSettings().isCrc(), outgoingFrame);
     }
 
     /**
@@ -554,8 +572,7 @@ public class NHACPExtension implements ServerExtension
         // Get the Session
         NHACPSession session = this.sessions.get(frame.getSessionId()).get();
 
-        ByteOutputStreamHolder outgoingFrame = ByteOutputStreamHolder
-                .newStream();
+        NHACPFrameEncoder outgoingFrame = new NHACPFrameEncoder();
 
         int fileHandle = frame.getMemoryStream().readByte();
         long blockNumber = frame.getMemoryStream().readInt();
@@ -604,8 +621,7 @@ public class NHACPExtension implements ServerExtension
                 outgoingFrame.writeBytes(data);
             }
 
-            this.writeFrame(session.getSettings().isCrc(),
-                    outgoingFrame.getBytes());
+            this.writeFrame(session.getSettings().isCrc(), outgoingFrame);
         }
         else
         {
@@ -628,8 +644,7 @@ public class NHACPExtension implements ServerExtension
         // Get the Session
         NHACPSession session = this.sessions.get(frame.getSessionId()).get();
 
-        ByteOutputStreamHolder outgoingFrame = ByteOutputStreamHolder
-                .newStream();
+        NHACPFrameEncoder outgoingFrame = new NHACPFrameEncoder();
 
         int fileHandle = frame.getMemoryStream().readByte();
         long blockNumber = frame.getMemoryStream().readInt();
@@ -678,8 +693,7 @@ public class NHACPExtension implements ServerExtension
             Files.write(FileHandle.get().getFullFilename(), bytes2);
 
             outgoingFrame.writeBytes(0x81);
-            this.writeFrame(session.getSettings().isCrc(),
-                    outgoingFrame.getBytes());
+            this.writeFrame(session.getSettings().isCrc(), outgoingFrame);
         }
         else
         {
@@ -700,8 +714,7 @@ public class NHACPExtension implements ServerExtension
         // Get the Session
         NHACPSession session = this.sessions.get(frame.getSessionId()).get();
 
-        ByteOutputStreamHolder outgoingFrame = ByteOutputStreamHolder
-                .newStream();
+        NHACPFrameEncoder outgoingFrame = new NHACPFrameEncoder();
 
         // Read the file handle
         int fileHandle = frame.getMemoryStream().readByte();
@@ -735,8 +748,7 @@ public class NHACPExtension implements ServerExtension
             // write the data
             outgoingFrame.writeBytes(data);
 
-            this.writeFrame(session.getSettings().isCrc(),
-                    outgoingFrame.getBytes());
+            this.writeFrame(session.getSettings().isCrc(), outgoingFrame);
         }
         else
         {
@@ -757,8 +769,7 @@ public class NHACPExtension implements ServerExtension
         // Get the Session
         NHACPSession session = this.sessions.get(frame.getSessionId()).get();
 
-        ByteOutputStreamHolder outgoingFrame = ByteOutputStreamHolder
-                .newStream();
+        NHACPFrameEncoder outgoingFrame = new NHACPFrameEncoder();
 
         // Read the file handle
         int fileHandle = frame.getMemoryStream().readByte();
@@ -812,8 +823,7 @@ public class NHACPExtension implements ServerExtension
             Files.write(FileHandle.get().getFullFilename(), bytes2);
 
             outgoingFrame.writeBytes(0x81);
-            this.writeFrame(session.getSettings().isCrc(),
-                    outgoingFrame.getBytes());
+            this.writeFrame(session.getSettings().isCrc(), outgoingFrame);
         }
         else
         {
@@ -834,8 +844,7 @@ public class NHACPExtension implements ServerExtension
         // Get the Session
         NHACPSession session = this.sessions.get(frame.getSessionId()).get();
 
-        ByteOutputStreamHolder outgoingFrame = ByteOutputStreamHolder
-                .newStream();
+        NHACPFrameEncoder outgoingFrame = new NHACPFrameEncoder();
 
         // read the file handle
         int fileHandle = frame.getMemoryStream().readByte();
@@ -883,8 +892,7 @@ public class NHACPExtension implements ServerExtension
 
             outgoingFrame.writeBytes(0x89);
             outgoingFrame.writeInt(FileHandle.get().getIndex());
-            this.writeFrame(session.getSettings().isCrc(),
-                    outgoingFrame.getBytes());
+            this.writeFrame(session.getSettings().isCrc(), outgoingFrame);
         }
         else
         {
@@ -905,8 +913,7 @@ public class NHACPExtension implements ServerExtension
         // Get the Session
         NHACPSession session = this.sessions.get(frame.getSessionId()).get();
 
-        ByteOutputStreamHolder outgoingFrame = ByteOutputStreamHolder
-                .newStream();
+        NHACPFrameEncoder outgoingFrame = new NHACPFrameEncoder();
 
         // read the file handle
         int fileHandle = frame.getMemoryStream().readByte();
@@ -952,8 +959,7 @@ public class NHACPExtension implements ServerExtension
                 outgoingFrame.writeBytes(0x0);
 
                 // Write the frame
-                this.writeFrame(session.getSettings().isCrc(),
-                        outgoingFrame.getBytes());
+                this.writeFrame(session.getSettings().isCrc(), outgoingFrame);
             }
             else
             {
@@ -982,8 +988,7 @@ public class NHACPExtension implements ServerExtension
         // Get the Session
         NHACPSession session = this.sessions.get(frame.getSessionId()).get();
 
-        ByteOutputStreamHolder outgoingFrame = ByteOutputStreamHolder
-                .newStream();
+        NHACPFrameEncoder outgoingFrame = new NHACPFrameEncoder();
 
         // read the file handle
         int fileHandle = frame.getMemoryStream().readByte();
@@ -1020,8 +1025,7 @@ public class NHACPExtension implements ServerExtension
             Files.write(FileHandle.get().getFullFilename(), bytes2);
 
             outgoingFrame.writeBytes(0x81);
-            this.writeFrame(session.getSettings().isCrc(),
-                    outgoingFrame.getBytes());
+            this.writeFrame(session.getSettings().isCrc(), outgoingFrame);
 
         }
         else
@@ -1043,8 +1047,7 @@ public class NHACPExtension implements ServerExtension
         // Get the Session
         NHACPSession session = this.sessions.get(frame.getSessionId()).get();
 
-        ByteOutputStreamHolder outgoingFrame = ByteOutputStreamHolder
-                .newStream();
+        NHACPFrameEncoder outgoingFrame = new NHACPFrameEncoder();
 
         // read the file handle
         int fileHandle = frame.getMemoryStream().readByte();
@@ -1081,8 +1084,7 @@ public class NHACPExtension implements ServerExtension
             }
 
             outgoingFrame.writeBytes(0x81);
-            this.writeFrame(session.getSettings().isCrc(),
-                    outgoingFrame.getBytes());
+            this.writeFrame(session.getSettings().isCrc(), outgoingFrame);
         }
         else
         {
@@ -1103,8 +1105,7 @@ public class NHACPExtension implements ServerExtension
         // Get the Session
         NHACPSession session = this.sessions.get(frame.getSessionId()).get();
 
-        ByteOutputStreamHolder outgoingFrame = ByteOutputStreamHolder
-                .newStream();
+        NHACPFrameEncoder outgoingFrame = new NHACPFrameEncoder();
 
         // read the file handle
         int fileHandle = frame.getMemoryStream().readByte();
@@ -1158,15 +1159,13 @@ public class NHACPExtension implements ServerExtension
                 // write file name, but not to exceed maxLengthOfName
                 outgoingFrame.writeString(
                         file.getFileName().substring(0, maxLengthOfName));
-                this.writeFrame(session.getSettings().isCrc(),
-                        outgoingFrame.getBytes());
+                this.writeFrame(session.getSettings().isCrc(), outgoingFrame);
                 return;
             }
             else
             {
                 outgoingFrame.writeBytes(0x81);
-                this.writeFrame(session.getSettings().isCrc(),
-                        outgoingFrame.getBytes());
+                this.writeFrame(session.getSettings().isCrc(), outgoingFrame);
                 return;
             }
         }
@@ -1238,8 +1237,7 @@ public class NHACPExtension implements ServerExtension
         // Get the Session
         NHACPSession session = this.sessions.get(frame.getSessionId()).get();
 
-        ByteOutputStreamHolder outgoingFrame = ByteOutputStreamHolder
-                .newStream();
+        NHACPFrameEncoder outgoingFrame = new NHACPFrameEncoder();
 
         // get the directory name Length
         int dirNameLen = frame.getMemoryStream().readByte();
@@ -1260,8 +1258,7 @@ public class NHACPExtension implements ServerExtension
         }
 
         outgoingFrame.writeBytes(0x81);
-        this.writeFrame(session.getSettings().isCrc(),
-                outgoingFrame.getBytes());
+        this.writeFrame(session.getSettings().isCrc(), outgoingFrame);
     }
 
     /**
@@ -1339,13 +1336,12 @@ public class NHACPExtension implements ServerExtension
      */
     private void sendError(boolean crc, ErrorNHACP error) throws Exception
     {
-        ByteOutputStreamHolder outgoingFrame = ByteOutputStreamHolder
-                .newStream();
+        NHACPFrameEncoder outgoingFrame = new NHACPFrameEncoder();
 
         outgoingFrame.writeBytes(0x82);
         outgoingFrame.writeShort(error.getValue());
         outgoingFrame.writeString(ErrorStrings[error.getValue()]);
-        this.writeFrame(crc, outgoingFrame.getBytes());
+        this.writeFrame(crc, outgoingFrame);
     }
 
     /**
@@ -1354,21 +1350,9 @@ public class NHACPExtension implements ServerExtension
      * @param crc Calculate CRC or not
      * @param frame Frame to send
      */
-    private void writeFrame(boolean crc, byte[] frame) throws Exception
+    private void writeFrame(boolean crc, NHACPFrameEncoder frame)
+            throws Exception
     {
-        List<Integer> frameList = new ArrayList<Integer>();
-        for (byte b : frame)
-        {
-            frameList.add((int) b);
-        }
-
-        if (crc)
-        {
-            frameList.add(CRC.calculateNhacpCRC(frame));
-        }
-
-        sioc.getOs().writeShort(frameList.size());
-        sioc.getOs()
-                .writeBytes(frameList.toArray(new Integer[frameList.size()]));
+        frame.writeTo(sioc.getOs(), crc);
     }
 }
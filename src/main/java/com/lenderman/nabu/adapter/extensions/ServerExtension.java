@@ -43,4 +43,20 @@ public interface ServerExtension
      * 
      */
     void reset();
+
+    /**
+     * @return int number of sessions open in this extension
+     */
+    default int getOpenSessions()
+    {
+        return 0;
+    }
+
+    /**
+     * @return int number of file handles open in this extension
+     */
+    default int getOpenHandles()
+    {
+        return 0;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,49 @@
+package com.lenderman.nabu.adapter.loader;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/**
+ * Receives a file as it is loaded, so its first bytes can be used before the
+ * rest has arrived. The same bytes may be written more than once when a load
+ * is retried or hedged.
+ */
+public interface DataSink
+{
+    /**
+     * The file exists and its bytes are about to arrive
+     * 
+     * @param long length of the file, -1 if not known
+     */
+    public void start(long length);
+
+    /**
+     * Bytes of the file
+     * 
+     * @param long position of the bytes in the file
+     * @param byte[] data
+     * @param int offset of the bytes in data
+     * @param int length number of bytes
+     */
+    public void write(long position, byte[] data, int offset, int length);
+}
@@ -0,0 +1,223 @@
+package com.lenderman.nabu.adapter.loader;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.FileNotFoundException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs loads in the background with a deadline, retrying failed attempts
+ * with a growing pause between them. Optionally, if the first attempt is
+ * slow, a second one is started next to it and whichever answers first wins.
+ * 
+ * A FileNotFoundException means the file is not there, which no retry will
+ * change, so it ends the load right away.
+ */
+public class LoadScheduler
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager
+            .getLogger(LoadScheduler.class);
+
+    /**
+     * Threads running load attempts, shared by every scheduler
+     */
+    private static final ExecutorService workers = Executors
+            .newCachedThreadPool(daemon("Load worker"));
+
+    /**
+     * Thread timing deadlines, retries and hedges, shared by every scheduler
+     */
+    private static final ScheduledExecutorService timer = Executors
+            .newSingleThreadScheduledExecutor(daemon("Load timer"));
+
+    /**
+     * Milliseconds a load may take, over all of its attempts
+     */
+    private long timeoutMillis;
+
+    /**
+     * Attempts after the first one
+     */
+    private int retries;
+
+    /**
+     * Milliseconds before the first retry, doubled for each one after it
+     */
+    private long backoffMillis;
+
+    /**
+     * Milliseconds before a second attempt is started next to a slow first
+     * one, 0 to never start one
+     */
+    private long hedgeMillis;
+
+    /**
+     * Constructor
+     * 
+     * @param long timeoutMillis milliseconds a load may take in all
+     * @param int retries attempts after the first one
+     * @param long backoffMillis milliseconds before the first retry
+     * @param long hedgeMillis milliseconds before a hedged attempt, or 0
+     */
+    public LoadScheduler(long timeoutMillis, int retries, long backoffMillis,
+            long hedgeMillis)
+    {
+        this.timeoutMillis = timeoutMillis;
+        this.retries = retries;
+        this.backoffMillis = backoffMillis;
+        this.hedgeMillis = hedgeMillis;
+    }
+
+    /**
+     * Milliseconds a single attempt may block on the network, so that every
+     * attempt fits within the deadline
+     * 
+     * @return int
+     */
+    public int getAttemptTimeoutMillis()
+    {
+        return (int) Math.max(1000, timeoutMillis / (retries + 1));
+    }
+
+    /**
+     * Run a load
+     * 
+     * @param String name what is being loaded, for logging
+     * @param Callable<T> attempt one attempt at the load
+     * @return CompletableFuture<T>
+     */
+    public <T> CompletableFuture<T> submit(String name, Callable<T> attempt)
+    {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        List<Future<?>> running = new CopyOnWriteArrayList<Future<?>>();
+        AtomicInteger chains = new AtomicInteger(1);
+
+        Future<?> deadline = timer.schedule(
+                () -> result.completeExceptionally(new TimeoutException(
+                        name + " took longer than " + timeoutMillis + " ms")),
+                timeoutMillis, TimeUnit.MILLISECONDS);
+
+        result.whenComplete((value, ex) -> {
+            deadline.cancel(false);
+            for (Future<?> future : running)
+            {
+                future.cancel(true);
+            }
+        });
+
+        this.attempt(name, attempt, result, running, chains, 0);
+
+        if (hedgeMillis > 0)
+        {
+            running.add(timer.schedule(() -> {
+                if (!result.isDone())
+                {
+                    logger.debug("{} is slow, hedging", name);
+                    chains.incrementAndGet();
+                    this.attempt(name, attempt, result, running, chains, 0);
+                }
+            }, hedgeMillis, TimeUnit.MILLISECONDS));
+        }
+        return result;
+    }
+
+    /**
+     * Make one attempt, and schedule the next one if it fails
+     * 
+     * @param String name what is being loaded
+     * @param Callable<T> attempt
+     * @param CompletableFuture<T> result
+     * @param List<Future<?>> running attempts and timers to cancel at the end
+     * @param AtomicInteger chains attempts still going, hedges included
+     * @param int tries attempts made so far in this chain
+     */
+    private <T> void attempt(String name, Callable<T> attempt,
+            CompletableFuture<T> result, List<Future<?>> running,
+            AtomicInteger chains, int tries)
+    {
+        if (result.isDone())
+        {
+            return;
+        }
+
+        running.add(workers.submit(() -> {
+            try
+            {
+                result.complete(attempt.call());
+            }
+            catch (FileNotFoundException ex)
+            {
+                result.completeExceptionally(ex);
+            }
+            catch (Exception ex)
+            {
+                if (tries < retries && !result.isDone())
+                {
+                    long pause = backoffMillis << tries;
+                    logger.debug("{} failed, retrying in {} ms: {}", name,
+                            pause, ex.getMessage());
+                    running.add(timer.schedule(
+                            () -> this.attempt(name, attempt, result, running,
+                                    chains, tries + 1),
+                            pause, TimeUnit.MILLISECONDS));
+                }
+                else if (chains.decrementAndGet() == 0)
+                {
+                    result.completeExceptionally(ex);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Thread factory for daemon threads
+     * 
+     * @param String name thread name
+     * @return ThreadFactory
+     */
+    private static ThreadFactory daemon(String name)
+    {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -23,7 +23,9 @@ package com.lenderman.nabu.adapter.loader;
  * SOFTWARE.
  */
 
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 public interface Loader
 {
@@ -37,6 +39,30 @@ public interface Loader
      */
     public Optional<byte[]> tryGetData(String path, String preserveDataPath);
 
+    /**
+     * Get the data without blocking. The future completes exceptionally if the
+     * data can't be had, with a FileNotFoundException if it does not exist.
+     * 
+     * @param String path
+     * @param String preserveDataPath data path for preserving data (null if no
+     *        desire to preserve data)
+     * @return CompletableFuture<byte[]>
+     */
+    public CompletableFuture<byte[]> getDataAsync(String path,
+            String preserveDataPath);
+
+    /**
+     * Get the data without blocking, handing it to a sink as it arrives
+     * 
+     * @param String path
+     * @param String preserveDataPath data path for preserving data (null if no
+     *        desire to preserve data)
+     * @param DataSink sink receives the data as it arrives
+     * @return CompletableFuture<byte[]> the whole data
+     */
+    public CompletableFuture<byte[]> getDataAsync(String path,
+            String preserveDataPath, DataSink sink);
+
     /**
      * Try to get the containing directory of the specified file
      * 
@@ -45,6 +71,14 @@ public interface Loader
      */
     public Optional<String> tryGetDirectory(String path) throws Exception;
 
+    /**
+     * Try to list the names of the files in the specified directory
+     * 
+     * @param String directory
+     * @return Optional<List<String>>, empty if the directory can't be listed
+     */
+    public Optional<List<String>> tryListFiles(String directory);
+
     /**
      * Return the path separator assocated with this loader
      * 
@@ -24,9 +24,15 @@ package com.lenderman.nabu.adapter.loader;
  */
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.apache.commons.io.IOUtils;
 import com.lenderman.nabu.adapter.model.settings.Settings;
 
@@ -64,6 +70,44 @@ public class LocalLoader implements Loader
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * Local files are read right away, they are never slow enough to be worth
+     * another thread.
+     */
+    @Override
+    public CompletableFuture<byte[]> getDataAsync(String path,
+            String preserveDataPath)
+    {
+        return this.getDataAsync(path, preserveDataPath, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<byte[]> getDataAsync(String path,
+            String preserveDataPath, DataSink sink)
+    {
+        CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+        Optional<byte[]> data = this.tryGetData(path, preserveDataPath);
+        if (data.isPresent())
+        {
+            if (sink != null)
+            {
+                sink.start(data.get().length);
+                sink.write(0, data.get(), 0, data.get().length);
+            }
+            result.complete(data.get());
+        }
+        else
+        {
+            result.completeExceptionally(new FileNotFoundException(path));
+        }
+        return result;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -87,6 +131,24 @@ public class LocalLoader implements Loader
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<List<String>> tryListFiles(String directory)
+    {
+        try (Stream<Path> files = Files.list(Paths.get(directory)))
+        {
+            return Optional.of(files.filter(Files::isRegularFile)
+                    .map(file -> file.getFileName().toString())
+                    .collect(Collectors.toList()));
+        }
+        catch (Exception ex)
+        {
+            return Optional.empty();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
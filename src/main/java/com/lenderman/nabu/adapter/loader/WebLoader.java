@@ -24,13 +24,22 @@ package com.lenderman.nabu.adapter.loader;
  */
 
 import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import com.lenderman.nabu.adapter.utilities.WebUtils;
@@ -42,6 +51,47 @@ public class WebLoader implements Loader
      */
     private static final Logger logger = LogManager.getLogger(WebLoader.class);
 
+    /**
+     * File listing the files of a web cycle directory
+     */
+    public static final String ManifestFile = "manifest.txt";
+
+    /**
+     * Added to a preserved file name to name the file holding its metadata
+     */
+    private static final String MetadataExtension = ".meta";
+
+    /**
+     * Longest a preserved file is trusted without asking the server, when the
+     * server gives no lifetime but a last modified time
+     */
+    private static final long MaxHeuristicFreshnessMillis = 24L * 60 * 60
+            * 1000;
+
+    /**
+     * Deadlines, retries and hedging of downloads
+     */
+    private LoadScheduler scheduler;
+
+    /**
+     * Constructor, with the default download deadlines and retries
+     */
+    public WebLoader()
+    {
+        this(new LoadScheduler(30000, 2, 250, 0));
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param LoadScheduler scheduler deadlines, retries and hedging of
+     *        downloads
+     */
+    public WebLoader(LoadScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -50,30 +100,346 @@ public class WebLoader implements Loader
     {
         try
         {
-            URLConnection connection = WebUtils.openWebClient(path);
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            byte[] bytes = new byte[8192];
-            int len;
-            while ((len = connection.getInputStream().read(bytes)) > 0)
+            return Optional.of(this.getDataAsync(path, preserveDataPath).get());
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+        catch (Exception ex)
+        {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * When preserveDataPath is set, it is used as a cache. A preserved file is
+     * served as is while it is fresh, and after that only downloaded again if
+     * the server says it changed.
+     */
+    @Override
+    public CompletableFuture<byte[]> getDataAsync(String path,
+            String preserveDataPath)
+    {
+        return this.getDataAsync(path, preserveDataPath, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<byte[]> getDataAsync(String path,
+            String preserveDataPath, DataSink sink)
+    {
+        return scheduler.submit(path,
+                () -> this.download(path, preserveDataPath, sink));
+    }
+
+    /**
+     * One attempt at getting a file
+     * 
+     * @param String path
+     * @param String preserveDataPath data path for preserving data, or null
+     * @param DataSink sink receives the data as it arrives, or null
+     * @return byte[]
+     */
+    private byte[] download(String path, String preserveDataPath,
+            DataSink sink) throws Exception
+    {
+        Path outputFile = null;
+        Path metadataFile = null;
+        Properties metadata = new Properties();
+
+        if (preserveDataPath != null)
+        {
+            outputFile = Paths.get(preserveDataPath, getPathSeparator(),
+                    new URI(path).getPath());
+            metadataFile = outputFile.resolveSibling(
+                    outputFile.getFileName() + MetadataExtension);
+            metadata = readMetadata(outputFile, metadataFile);
+
+            if (!metadata.isEmpty() && System.currentTimeMillis() < Long
+                    .parseLong(metadata.getProperty("expires", "0")))
+            {
+                logger.debug("Serving {} from {}", path, outputFile);
+                return sinkAll(sink, Files.readAllBytes(outputFile));
+            }
+        }
+
+        URLConnection connection = WebUtils.openWebClient(path,
+                scheduler.getAttemptTimeoutMillis());
+        if (!metadata.isEmpty())
+        {
+            // Only download it again if it changed
+            if (metadata.getProperty("etag") != null)
+            {
+                connection.addRequestProperty("If-None-Match",
+                        metadata.getProperty("etag"));
+            }
+            if (metadata.getProperty("lastModified") != null)
+            {
+                connection.addRequestProperty("If-Modified-Since",
+                        metadata.getProperty("lastModified"));
+            }
+        }
+
+        if (connection instanceof HttpURLConnection)
+        {
+            HttpURLConnection http = (HttpURLConnection) connection;
+            int code = http.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED
+                    && outputFile != null)
+            {
+                logger.debug("{} not modified, serving {}", path, outputFile);
+                updateMetadata(metadata, connection);
+                write(metadataFile, metadata);
+                return sinkAll(sink, Files.readAllBytes(outputFile));
+            }
+            if (code >= 400)
+            {
+                discard(http);
+                if (code < 500)
+                {
+                    // Asking again won't make it appear
+                    throw new FileNotFoundException(
+                            path + " returned " + code);
+                }
+                throw new IOException(path + " returned " + code);
+            }
+        }
+
+        byte[] data = read(connection, sink);
+        if (outputFile != null)
+        {
+            logger.debug("Preserving {}", path);
+            Files.createDirectories(outputFile.getParent());
+            write(outputFile, data);
+
+            metadata.clear();
+            updateMetadata(metadata, connection);
+            write(metadataFile, metadata);
+        }
+        return data;
+    }
+
+    /**
+     * Read and drop an error response, so that its connection can be kept
+     * alive and used for the next request
+     * 
+     * @param HttpURLConnection connection
+     */
+    private static void discard(HttpURLConnection connection)
+    {
+        try (InputStream stream = connection.getErrorStream())
+        {
+            if (stream != null)
+            {
+                byte[] bytes = new byte[8192];
+                while (stream.read(bytes) > 0)
+                {
+                    // Nothing to keep
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            // The connection won't be reused, nothing else is lost
+        }
+    }
+
+    /**
+     * Read the whole response
+     * 
+     * @param URLConnection connection
+     * @param DataSink sink receives the data as it arrives, or null
+     * @return byte[]
+     */
+    private static byte[] read(URLConnection connection, DataSink sink)
+            throws Exception
+    {
+        long length = connection.getContentLengthLong();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+                length > 0 && length < Integer.MAX_VALUE ? (int) length : 8192);
+        byte[] bytes = new byte[8192];
+        int len;
+        try (InputStream stream = connection.getInputStream())
+        {
+            if (sink != null)
+            {
+                sink.start(length);
+            }
+            while ((len = stream.read(bytes)) > 0)
             {
+                if (sink != null)
+                {
+                    sink.write(buffer.size(), bytes, 0, len);
+                }
                 buffer.write(bytes, 0, len);
             }
+        }
+        if (length >= 0 && buffer.size() < length)
+        {
+            // The connection closed before the whole file arrived
+            throw new IOException("Expected " + length + " bytes but got "
+                    + buffer.size() + " from " + connection.getURL());
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Hand a whole file to a sink
+     * 
+     * @param DataSink sink receives the data, or null
+     * @param byte[] data
+     * @return byte[] data
+     */
+    private static byte[] sinkAll(DataSink sink, byte[] data)
+    {
+        if (sink != null)
+        {
+            sink.start(data.length);
+            sink.write(0, data, 0, data.length);
+        }
+        return data;
+    }
 
-            if (preserveDataPath != null)
+    /**
+     * Read the metadata of a preserved file, empty if either is missing
+     * 
+     * @param Path outputFile preserved file
+     * @param Path metadataFile its metadata
+     * @return Properties
+     */
+    private static Properties readMetadata(Path outputFile, Path metadataFile)
+    {
+        Properties metadata = new Properties();
+        if (Files.exists(outputFile) && Files.exists(metadataFile))
+        {
+            try (InputStream stream = Files.newInputStream(metadataFile))
+            {
+                metadata.load(stream);
+            }
+            catch (Exception ex)
             {
-                logger.debug("Preserving {}", path);
-                Path outputFile = Paths.get(preserveDataPath,
-                        getPathSeparator(), new URI(path).getPath());
-                Files.createDirectories(outputFile.getParent());
-                Files.write(outputFile, buffer.toByteArray(),
-                        StandardOpenOption.CREATE);
+                logger.warn("Could not read {}", metadataFile, ex);
+                metadata.clear();
             }
-            buffer.close();
-            return (Optional.of(buffer.toByteArray()));
         }
-        catch (Exception ex)
+        return metadata;
+    }
+
+    /**
+     * Record the validators and lifetime the server sent with a response
+     * 
+     * @param Properties metadata
+     * @param URLConnection connection
+     */
+    private static void updateMetadata(Properties metadata,
+            URLConnection connection)
+    {
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null)
         {
-            return Optional.empty();
+            metadata.setProperty("etag", etag);
+        }
+        String lastModified = connection.getHeaderField("Last-Modified");
+        if (lastModified != null)
+        {
+            metadata.setProperty("lastModified", lastModified);
+            metadata.setProperty("lastModifiedTime",
+                    Long.toString(connection.getLastModified()));
+        }
+        metadata.setProperty("expires", Long.toString(getExpiry(connection,
+                Long.parseLong(metadata.getProperty("lastModifiedTime", "0")))));
+    }
+
+    /**
+     * Work out until when a response can be used without asking the server
+     * again: from Cache-Control, then Expires, then a tenth of the time since
+     * it was last modified
+     * 
+     * @param URLConnection connection
+     * @param long lastModified when the file last changed, as far as we know
+     * @return long expiry in milliseconds since the epoch
+     */
+    private static long getExpiry(URLConnection connection, long lastModified)
+    {
+        long now = System.currentTimeMillis();
+
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null)
+        {
+            for (String directive : cacheControl.toLowerCase().split(","))
+            {
+                directive = directive.trim();
+                if (directive.equals("no-cache") || directive.equals("no-store"))
+                {
+                    return 0;
+                }
+                if (directive.startsWith("max-age="))
+                {
+                    try
+                    {
+                        return now + 1000L * Long.parseLong(
+                                directive.substring("max-age=".length()));
+                    }
+                    catch (NumberFormatException ex)
+                    {
+                        return 0;
+                    }
+                }
+            }
+        }
+
+        long expires = connection.getHeaderFieldDate("Expires", 0);
+        if (expires > 0)
+        {
+            return expires;
+        }
+
+        if (lastModified > 0 && lastModified < now)
+        {
+            return now + Math.min((now - lastModified) / 10,
+                    MaxHeuristicFreshnessMillis);
+        }
+        return 0;
+    }
+
+    /**
+     * Write metadata to a file
+     * 
+     * @param Path file
+     * @param Properties metadata
+     */
+    private static void write(Path file, Properties metadata) throws Exception
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        metadata.store(buffer, null);
+        write(file, buffer.toByteArray());
+    }
+
+    /**
+     * Write a file aside and move it into place, so other adapters sharing
+     * the preserve path never read half of it
+     * 
+     * @param Path file
+     * @param byte[] data
+     */
+    private static void write(Path file, byte[] data) throws Exception
+    {
+        Path temp = Files.createTempFile(file.getParent(),
+                file.getFileName().toString(), ".tmp");
+        try
+        {
+            Files.write(temp, data);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
         }
     }
 
@@ -118,6 +484,33 @@ public class WebLoader implements Loader
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<List<String>> tryListFiles(String directory)
+    {
+        // Web servers don't offer a listing we can count on, but a cycle can
+        // publish one, a file name per line
+        Optional<byte[]> manifest = this.tryGetData(
+                directory + getPathSeparator() + ManifestFile, null);
+        if (!manifest.isPresent())
+        {
+            return Optional.empty();
+        }
+
+        List<String> names = new ArrayList<String>();
+        for (String line : new String(manifest.get(), StandardCharsets.UTF_8)
+                .split("\\r?\\n"))
+        {
+            if (!line.trim().isEmpty())
+            {
+                names.add(line.trim());
+            }
+        }
+        return Optional.of(names);
+    }
+
     /**
      * {@inheritDoc}
      */
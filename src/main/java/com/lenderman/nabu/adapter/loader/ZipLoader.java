@@ -0,0 +1,377 @@
+package com.lenderman.nabu.adapter.loader;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Loads a cycle packed in a .zip archive, local or on the web. The archive is
+ * the cycle directory: its files are found by name wherever they are in the
+ * archive, and each one is inflated straight out of the archive when asked
+ * for, without unpacking anything.
+ * 
+ * A web archive is downloaded once. Open archives are shared by every loader
+ * of the same cycle, so the whole cycle costs one open file.
+ */
+public class ZipLoader implements Loader
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager.getLogger(ZipLoader.class);
+
+    /**
+     * Archives opened so far, keyed by archive path
+     */
+    private static final Map<String, Archive> archives = new ConcurrentHashMap<String, Archive>();
+
+    /**
+     * An open archive
+     */
+    private static class Archive
+    {
+        /**
+         * The archive
+         */
+        private ZipFile zip;
+
+        /**
+         * Entries of the archive, keyed by file name
+         */
+        private Map<String, ZipEntry> index = new HashMap<String, ZipEntry>();
+
+        /**
+         * Modification time of a local archive when it was opened, null for a
+         * web archive
+         */
+        private FileTime modified;
+
+        /**
+         * Number of files being read out of the archive
+         */
+        private int readers;
+
+        /**
+         * Whether a newer copy of the archive replaced this one
+         */
+        private boolean retired;
+
+        /**
+         * Start reading out of the archive
+         * 
+         * @return boolean false if the archive was replaced and can't be read
+         */
+        private synchronized boolean acquire()
+        {
+            if (retired)
+            {
+                return false;
+            }
+            readers++;
+            return true;
+        }
+
+        /**
+         * Done reading out of the archive
+         */
+        private synchronized void release()
+        {
+            readers--;
+            this.closeIfUnused();
+        }
+
+        /**
+         * Close the archive once nothing reads out of it anymore
+         */
+        private synchronized void retire()
+        {
+            retired = true;
+            this.closeIfUnused();
+        }
+
+        /**
+         * Close a replaced archive that nothing reads out of
+         */
+        private void closeIfUnused()
+        {
+            if (retired && readers == 0)
+            {
+                try
+                {
+                    zip.close();
+                }
+                catch (IOException ex)
+                {
+                    logger.warn("Could not close replaced archive {}",
+                            zip.getName(), ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Path or URL of the archive
+     */
+    private String archivePath;
+
+    /**
+     * Loader that downloads a web archive, null for a local archive
+     */
+    private Loader webLoader;
+
+    /**
+     * Constructor
+     * 
+     * @param String archivePath path or URL of the archive
+     * @param Loader webLoader downloads a web archive, null for a local one
+     */
+    public ZipLoader(String archivePath, Loader webLoader)
+    {
+        this.archivePath = archivePath;
+        this.webLoader = webLoader;
+    }
+
+    /**
+     * @return Optional<String> the archive file, if it is local
+     */
+    public Optional<String> getLocalArchive()
+    {
+        return webLoader == null ? Optional.of(archivePath) : Optional.empty();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<byte[]> tryGetData(String path, String preserveDataPath)
+    {
+        try
+        {
+            Archive archive = this.open(preserveDataPath);
+            while (!archive.acquire())
+            {
+                // Replaced since it was opened, take the newer one
+                archive = this.open(preserveDataPath);
+            }
+
+            try
+            {
+                ZipEntry entry = archive.index.get(this.getName(path));
+                if (entry == null)
+                {
+                    return Optional.empty();
+                }
+                try (InputStream stream = archive.zip.getInputStream(entry))
+                {
+                    return Optional.of(IOUtils.toByteArray(stream));
+                }
+            }
+            finally
+            {
+                archive.release();
+            }
+        }
+        catch (Exception ex)
+        {
+            logger.debug("Could not read {}: {}", path, ex.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<byte[]> getDataAsync(String path,
+            String preserveDataPath)
+    {
+        return this.getDataAsync(path, preserveDataPath, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Entries are inflated right away, once the archive is open they are as
+     * quick to read as local files.
+     */
+    @Override
+    public CompletableFuture<byte[]> getDataAsync(String path,
+            String preserveDataPath, DataSink sink)
+    {
+        CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+        Optional<byte[]> data = this.tryGetData(path, preserveDataPath);
+        if (data.isPresent())
+        {
+            if (sink != null)
+            {
+                sink.start(data.get().length);
+                sink.write(0, data.get(), 0, data.get().length);
+            }
+            result.complete(data.get());
+        }
+        else
+        {
+            result.completeExceptionally(new FileNotFoundException(path));
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The archive itself is the directory.
+     */
+    @Override
+    public Optional<String> tryGetDirectory(String path) throws Exception
+    {
+        return Optional.of(archivePath);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<List<String>> tryListFiles(String directory)
+    {
+        try
+        {
+            return Optional
+                    .of(new ArrayList<String>(this.open(null).index.keySet()));
+        }
+        catch (Exception ex)
+        {
+            logger.error("Could not open {}", archivePath, ex);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getPathSeparator()
+    {
+        return "/";
+    }
+
+    /**
+     * Name of the file a path points to in the archive
+     * 
+     * @param String path
+     * @return String
+     */
+    private String getName(String path)
+    {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Get the open archive, opening it if needed, and opening a local one
+     * again if it changed
+     * 
+     * @param String preserveDataPath where to preserve a downloaded archive,
+     *        or null
+     * @return Archive
+     */
+    private Archive open(String preserveDataPath) throws Exception
+    {
+        Archive archive = archives.get(archivePath);
+        if (archive != null && (archive.modified == null || archive.modified
+                .equals(Files.getLastModifiedTime(Paths.get(archivePath)))))
+        {
+            return archive;
+        }
+
+        synchronized (archives)
+        {
+            archive = archives.get(archivePath);
+            if (archive != null && (archive.modified == null
+                    || archive.modified.equals(Files
+                            .getLastModifiedTime(Paths.get(archivePath)))))
+            {
+                return archive;
+            }
+
+            Archive replaced = archive;
+            Path file;
+            archive = new Archive();
+            if (webLoader == null)
+            {
+                file = Paths.get(archivePath);
+                archive.modified = Files.getLastModifiedTime(file);
+            }
+            else
+            {
+                logger.info("Downloading cycle archive {}", archivePath);
+                byte[] data = webLoader
+                        .getDataAsync(archivePath, preserveDataPath).get();
+                file = Files.createTempFile("cycle", ".zip");
+                file.toFile().deleteOnExit();
+                Files.write(file, data);
+            }
+
+            archive.zip = new ZipFile(file.toFile());
+            Enumeration<? extends ZipEntry> entries = archive.zip.entries();
+            while (entries.hasMoreElements())
+            {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory())
+                {
+                    archive.index.putIfAbsent(this.getName(entry.getName()),
+                            entry);
+                }
+            }
+
+            logger.info("Opened cycle archive {} with {} files", archivePath,
+                    archive.index.size());
+            archives.put(archivePath, archive);
+
+            // Readers still using the older copy close it when they are done
+            if (replaced != null)
+            {
+                replaced.retire();
+            }
+            return archive;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.lenderman.nabu.adapter.metrics;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how long something took in fixed buckets, from 50 microseconds to 10
+ * seconds. Recording only adds to striped counters, so any number of threads
+ * can record at once without taking a lock.
+ */
+public class LatencyHistogram implements LatencyMXBean
+{
+    /**
+     * Upper bounds of the buckets, in nanoseconds, before the last bucket
+     * that holds everything longer
+     */
+    private static final long[] Bounds =
+    { 50000L, 100000L, 250000L, 500000L, 1000000L, 2500000L, 5000000L,
+            10000000L, 25000000L, 50000000L, 100000000L, 250000000L,
+            500000000L, 1000000000L, 2500000000L, 5000000000L, 10000000000L };
+
+    /**
+     * Count of times in each bucket
+     */
+    private LongAdder[] buckets = new LongAdder[Bounds.length + 1];
+
+    /**
+     * Sum of all times recorded, in nanoseconds
+     */
+    private LongAdder sum = new LongAdder();
+
+    /**
+     * Longest time recorded, in nanoseconds
+     */
+    private LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    /**
+     * Constructor
+     */
+    public LatencyHistogram()
+    {
+        for (int i = 0; i < buckets.length; i++)
+        {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a time
+     * 
+     * @param long nanos
+     */
+    public void record(long nanos)
+    {
+        int bucket = 0;
+        while (bucket < Bounds.length && nanos > Bounds[bucket])
+        {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCount()
+    {
+        long count = 0;
+        for (LongAdder bucket : buckets)
+        {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMeanMillis()
+    {
+        long count = this.getCount();
+        return count == 0 ? 0 : sum.sum() / 1e6 / count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMaxMillis()
+    {
+        return max.get() / 1e6;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getP50Millis()
+    {
+        return this.getPercentile(0.5) / 1e6;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getP99Millis()
+    {
+        return this.getPercentile(0.99) / 1e6;
+    }
+
+    /**
+     * Write the histogram in Prometheus text format
+     * 
+     * @param PrintWriter writer
+     * @param String name metric name
+     * @param String labels label pairs that pick out this histogram
+     */
+    void writePrometheus(PrintWriter writer, String name, String labels)
+    {
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++)
+        {
+            cumulative += buckets[i].sum();
+            writer.printf("%s_bucket{%s,le=\"%s\"} %d\n", name, labels,
+                    i < Bounds.length ? Double.toString(Bounds[i] / 1e9)
+                            : "+Inf",
+                    cumulative);
+        }
+        writer.printf("%s_sum{%s} %s\n", name, labels,
+                Double.toString(sum.sum() / 1e9));
+        writer.printf("%s_count{%s} %d\n", name, labels, cumulative);
+    }
+
+    /**
+     * Work out the upper bound of the bucket a percentile falls in
+     * 
+     * @param double fraction
+     * @return long nanoseconds, the longest time recorded for the last bucket
+     */
+    private long getPercentile(double fraction)
+    {
+        long count = this.getCount();
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        long target = (long) Math.ceil(count * fraction);
+        long cumulative = 0;
+        for (int i = 0; i < Bounds.length; i++)
+        {
+            cumulative += buckets[i].sum();
+            if (cumulative >= target)
+            {
+                return Math.min(Bounds[i], max.get());
+            }
+        }
+        return max.get();
+    }
+}
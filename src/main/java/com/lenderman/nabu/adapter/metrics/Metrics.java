@@ -0,0 +1,527 @@
+package com.lenderman.nabu.adapter.metrics;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import javax.management.ObjectName;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.lenderman.nabu.adapter.server.SegmentCache;
+
+/**
+ * Metrics of the whole adapter: how long each NABU command and NHACP request
+ * takes to handle, how long segments take to get from each source, bytes to
+ * and from each NABU, open sessions and handles, and the segment cache.
+ * 
+ * Recording only touches striped counters, so it never takes a lock. Counts
+ * that live elsewhere, such as bytes sent or the cache statistics, are read
+ * when the metrics are. Everything is registered with JMX, and can also be
+ * written in Prometheus text format.
+ */
+public class Metrics implements MetricsMXBean
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager.getLogger(Metrics.class);
+
+    /**
+     * JMX domain of every metric
+     */
+    private static final String Domain = "com.lenderman.nabu.adapter";
+
+    /**
+     * The one instance
+     */
+    private static final Metrics instance = new Metrics();
+
+    /**
+     * Time to handle each NABU command, by op code, created when first seen
+     */
+    private AtomicReferenceArray<LatencyHistogram> commands = new AtomicReferenceArray<LatencyHistogram>(
+            256);
+
+    /**
+     * Time to handle each NHACP request, by op code, created when first seen
+     */
+    private AtomicReferenceArray<LatencyHistogram> nhacpRequests = new AtomicReferenceArray<LatencyHistogram>(
+            256);
+
+    /**
+     * Time to get a segment, by where it came from
+     */
+    private Map<String, LatencyHistogram> loads = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * Connected NABUs, keyed by connection number
+     */
+    private Map<Integer, ConnectionStats> connections = new ConcurrentHashMap<Integer, ConnectionStats>();
+
+    /**
+     * Number given to the last NABU to connect
+     */
+    private AtomicInteger lastConnection = new AtomicInteger();
+
+    /**
+     * Bytes received from NABUs that have disconnected
+     */
+    private LongAdder closedBytesReceived = new LongAdder();
+
+    /**
+     * Bytes sent to NABUs that have disconnected
+     */
+    private LongAdder closedBytesSent = new LongAdder();
+
+    /**
+     * Shared segment cache, null until the server starts
+     */
+    private volatile SegmentCache cache;
+
+    /**
+     * Where the counts of a connected NABU are read from
+     */
+    private static class ConnectionStats
+    {
+        /**
+         * Bytes received
+         */
+        private LongSupplier bytesReceived;
+
+        /**
+         * Bytes sent
+         */
+        private LongSupplier bytesSent;
+
+        /**
+         * Open NHACP sessions
+         */
+        private IntSupplier sessions;
+
+        /**
+         * Open file handles
+         */
+        private IntSupplier handles;
+    }
+
+    /**
+     * Constructor
+     */
+    private Metrics()
+    {
+    }
+
+    /**
+     * @return Metrics the one instance
+     */
+    public static Metrics get()
+    {
+        return instance;
+    }
+
+    /**
+     * Register the adapter's metrics with JMX and follow the segment cache
+     * 
+     * @param SegmentCache cache shared segment cache
+     */
+    public static void start(SegmentCache cache)
+    {
+        instance.cache = cache;
+        register("type=Metrics", instance);
+    }
+
+    /**
+     * Record how long a NABU command took to handle
+     * 
+     * @param int opCode
+     * @param long nanos
+     */
+    public static void recordCommand(int opCode, long nanos)
+    {
+        histogram(instance.commands, "Command", opCode).record(nanos);
+    }
+
+    /**
+     * Record how long an NHACP request took to handle
+     * 
+     * @param int opCode
+     * @param long nanos
+     */
+    public static void recordNhacpRequest(int opCode, long nanos)
+    {
+        histogram(instance.nhacpRequests, "NHACP", opCode).record(nanos);
+    }
+
+    /**
+     * Record how long it took to get a segment
+     * 
+     * @param String source where the segment came from, such as cache, local
+     *        or web
+     * @param long nanos
+     */
+    public static void recordLoad(String source, long nanos)
+    {
+        LatencyHistogram histogram = instance.loads.get(source);
+        if (histogram == null)
+        {
+            histogram = instance.loads.computeIfAbsent(source, key -> {
+                LatencyHistogram created = new LatencyHistogram();
+                register("type=Latency,kind=Load,name=" + key, created);
+                return created;
+            });
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Start following the counts of a NABU that connected
+     * 
+     * @param LongSupplier bytesReceived
+     * @param LongSupplier bytesSent
+     * @param IntSupplier sessions open NHACP sessions
+     * @param IntSupplier handles open file handles
+     * @return int connection number, to pass to closeConnection
+     */
+    public static int openConnection(LongSupplier bytesReceived,
+            LongSupplier bytesSent, IntSupplier sessions, IntSupplier handles)
+    {
+        ConnectionStats stats = new ConnectionStats();
+        stats.bytesReceived = bytesReceived;
+        stats.bytesSent = bytesSent;
+        stats.sessions = sessions;
+        stats.handles = handles;
+
+        int id = instance.lastConnection.incrementAndGet();
+        instance.connections.put(id, stats);
+        return id;
+    }
+
+    /**
+     * Stop following a NABU that disconnected, keeping its byte counts in the
+     * totals
+     * 
+     * @param int id connection number from openConnection
+     */
+    public static void closeConnection(int id)
+    {
+        ConnectionStats stats = instance.connections.remove(id);
+        if (stats != null)
+        {
+            instance.closedBytesReceived.add(stats.bytesReceived.getAsLong());
+            instance.closedBytesSent.add(stats.bytesSent.getAsLong());
+        }
+    }
+
+    /**
+     * Write every metric in Prometheus text format
+     * 
+     * @param PrintWriter writer
+     */
+    public void writePrometheus(PrintWriter writer)
+    {
+        writer.print("# HELP nabu_command_seconds Time to handle a NABU command\n");
+        writer.print("# TYPE nabu_command_seconds histogram\n");
+        writeHistograms(writer, "nabu_command_seconds", commands);
+
+        writer.print("# HELP nabu_nhacp_request_seconds Time to handle an NHACP request\n");
+        writer.print("# TYPE nabu_nhacp_request_seconds histogram\n");
+        writeHistograms(writer, "nabu_nhacp_request_seconds", nhacpRequests);
+
+        writer.print("# HELP nabu_segment_load_seconds Time to get a segment, by where it came from\n");
+        writer.print("# TYPE nabu_segment_load_seconds histogram\n");
+        for (Map.Entry<String, LatencyHistogram> load : loads.entrySet())
+        {
+            load.getValue().writePrometheus(writer, "nabu_segment_load_seconds",
+                    "source=\"" + load.getKey() + "\"");
+        }
+
+        writer.print("# HELP nabu_connection_received_bytes_total Bytes received from a connected NABU\n");
+        writer.print("# TYPE nabu_connection_received_bytes_total counter\n");
+        for (Map.Entry<Integer, ConnectionStats> connection : connections
+                .entrySet())
+        {
+            writer.printf(
+                    "nabu_connection_received_bytes_total{connection=\"%d\"} %d\n",
+                    connection.getKey(),
+                    connection.getValue().bytesReceived.getAsLong());
+        }
+        writer.print("# HELP nabu_connection_sent_bytes_total Bytes sent to a connected NABU\n");
+        writer.print("# TYPE nabu_connection_sent_bytes_total counter\n");
+        for (Map.Entry<Integer, ConnectionStats> connection : connections
+                .entrySet())
+        {
+            writer.printf(
+                    "nabu_connection_sent_bytes_total{connection=\"%d\"} %d\n",
+                    connection.getKey(),
+                    connection.getValue().bytesSent.getAsLong());
+        }
+
+        writeValue(writer, "nabu_received_bytes_total", "counter",
+                "Bytes received from every NABU", this.getBytesReceived());
+        writeValue(writer, "nabu_sent_bytes_total", "counter",
+                "Bytes sent to every NABU", this.getBytesSent());
+        writeValue(writer, "nabu_connections", "gauge", "Connected NABUs",
+                this.getActiveConnections());
+        writeValue(writer, "nabu_nhacp_sessions", "gauge",
+                "Open NHACP sessions", this.getOpenSessions());
+        writeValue(writer, "nabu_open_handles", "gauge", "Open file handles",
+                this.getOpenHandles());
+
+        SegmentCache cache = this.cache;
+        if (cache != null)
+        {
+            writeValue(writer, "nabu_segment_cache_hits_total", "counter",
+                    "Segment lookups that found their segment cached",
+                    cache.getHits());
+            writeValue(writer, "nabu_segment_cache_misses_total", "counter",
+                    "Segment lookups that had to load their segment",
+                    cache.getMisses());
+            writeValue(writer, "nabu_segment_cache_stale_hits_total",
+                    "counter", "Segment lookups served a stale segment",
+                    cache.getStaleHits());
+            writeValue(writer, "nabu_segment_cache_evictions_total", "counter",
+                    "Segments evicted to stay within the memory budget",
+                    cache.getEvictions());
+            writeValue(writer, "nabu_segment_cache_invalidations_total",
+                    "counter", "Segments dropped because their file changed",
+                    cache.getInvalidations());
+            writeValue(writer, "nabu_segment_cache_bytes", "gauge",
+                    "Bytes of segment data cached", cache.getSize());
+            writeValue(writer, "nabu_segment_cache_capacity_bytes", "gauge",
+                    "Most bytes of segment data to cache",
+                    cache.getCapacity());
+            writeValue(writer, "nabu_segment_cache_segments", "gauge",
+                    "Segments cached", cache.getCount());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getActiveConnections()
+    {
+        return connections.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBytesReceived()
+    {
+        long bytes = closedBytesReceived.sum();
+        for (ConnectionStats stats : connections.values())
+        {
+            bytes += stats.bytesReceived.getAsLong();
+        }
+        return bytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBytesSent()
+    {
+        long bytes = closedBytesSent.sum();
+        for (ConnectionStats stats : connections.values())
+        {
+            bytes += stats.bytesSent.getAsLong();
+        }
+        return bytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getOpenSessions()
+    {
+        int sessions = 0;
+        for (ConnectionStats stats : connections.values())
+        {
+            sessions += stats.sessions.getAsInt();
+        }
+        return sessions;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getOpenHandles()
+    {
+        int handles = 0;
+        for (ConnectionStats stats : connections.values())
+        {
+            handles += stats.handles.getAsInt();
+        }
+        return handles;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCacheHits()
+    {
+        SegmentCache cache = this.cache;
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCacheMisses()
+    {
+        SegmentCache cache = this.cache;
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCacheStaleHits()
+    {
+        SegmentCache cache = this.cache;
+        return cache == null ? 0 : cache.getStaleHits();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCacheSize()
+    {
+        SegmentCache cache = this.cache;
+        return cache == null ? 0 : cache.getSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCachedSegments()
+    {
+        SegmentCache cache = this.cache;
+        return cache == null ? 0 : cache.getCount();
+    }
+
+    /**
+     * Get the histogram of an op code, creating and registering it the first
+     * time the op code is seen
+     * 
+     * @param AtomicReferenceArray<LatencyHistogram> histograms
+     * @param String kind what the op codes are for
+     * @param int opCode
+     * @return LatencyHistogram
+     */
+    private static LatencyHistogram histogram(
+            AtomicReferenceArray<LatencyHistogram> histograms, String kind,
+            int opCode)
+    {
+        int index = opCode & 0xFF;
+        LatencyHistogram histogram = histograms.get(index);
+        if (histogram == null)
+        {
+            LatencyHistogram created = new LatencyHistogram();
+            if (histograms.compareAndSet(index, null, created))
+            {
+                register("type=Latency,kind=" + kind + ",name="
+                        + String.format("0x%02x", index), created);
+                return created;
+            }
+            histogram = histograms.get(index);
+        }
+        return histogram;
+    }
+
+    /**
+     * Write the histograms of every op code seen so far
+     * 
+     * @param PrintWriter writer
+     * @param String name metric name
+     * @param AtomicReferenceArray<LatencyHistogram> histograms
+     */
+    private static void writeHistograms(PrintWriter writer, String name,
+            AtomicReferenceArray<LatencyHistogram> histograms)
+    {
+        for (int i = 0; i < histograms.length(); i++)
+        {
+            LatencyHistogram histogram = histograms.get(i);
+            if (histogram != null)
+            {
+                histogram.writePrometheus(writer, name,
+                        String.format("opcode=\"0x%02x\"", i));
+            }
+        }
+    }
+
+    /**
+     * Write a single value
+     * 
+     * @param PrintWriter writer
+     * @param String name metric name
+     * @param String type counter or gauge
+     * @param String help what the value is
+     * @param long value
+     */
+    private static void writeValue(PrintWriter writer, String name,
+            String type, String help, long value)
+    {
+        writer.print("# HELP " + name + " " + help + "\n");
+        writer.print("# TYPE " + name + " " + type + "\n");
+        writer.print(name + " " + value + "\n");
+    }
+
+    /**
+     * Register a bean with JMX
+     * 
+     * @param String properties key properties of its name
+     * @param Object bean
+     */
+    private static void register(String properties, Object bean)
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean,
+                    new ObjectName(Domain + ":" + properties));
+        }
+        catch (Exception ex)
+        {
+            logger.debug("Could not register {} with JMX: {}", properties,
+                    ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.lenderman.nabu.adapter.metrics;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/**
+ * Management interface of the adapter's overall metrics
+ */
+public interface MetricsMXBean
+{
+    /**
+     * @return int number of NABUs connected
+     */
+    int getActiveConnections();
+
+    /**
+     * @return long bytes received from every NABU since startup
+     */
+    long getBytesReceived();
+
+    /**
+     * @return long bytes sent to every NABU since startup
+     */
+    long getBytesSent();
+
+    /**
+     * @return int number of open NHACP sessions
+     */
+    int getOpenSessions();
+
+    /**
+     * @return int number of open file handles, over all extensions
+     */
+    int getOpenHandles();
+
+    /**
+     * @return long segment lookups that found their segment in the cache
+     */
+    long getCacheHits();
+
+    /**
+     * @return long segment lookups that had to load their segment
+     */
+    long getCacheMisses();
+
+    /**
+     * @return long segment lookups that were served a stale segment
+     */
+    long getCacheStaleHits();
+
+    /**
+     * @return long bytes of segment data in the cache
+     */
+    long getCacheSize();
+
+    /**
+     * @return long number of segments in the cache
+     */
+    long getCachedSegments();
+}
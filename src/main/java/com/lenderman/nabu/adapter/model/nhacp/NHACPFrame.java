@@ -1,7 +1,5 @@
 package com.lenderman.nabu.adapter.model.nhacp;
 
-import java.io.ByteArrayInputStream;
-import java.util.Arrays;
 import com.lenderman.nabu.adapter.server.ServerInputOutputController;
 import com.lenderman.nabu.adapter.stream.InputStreamHolder;
 
@@ -94,8 +92,7 @@ public class NHACPFrame
             // Now, read the frame
             byte[] data = sioc.getIs().readBytes(length);
             this.opCode = data[0];
-            memoryStream = new InputStreamHolder(new ByteArrayInputStream(
-                    Arrays.copyOfRange(data, 1, data.length)));
+            memoryStream = new InputStreamHolder(data, 1, data.length - 1);
         }
     }
 }
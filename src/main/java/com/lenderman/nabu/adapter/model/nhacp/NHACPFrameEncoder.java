@@ -0,0 +1,235 @@
+package com.lenderman.nabu.adapter.model.nhacp;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import com.lenderman.nabu.adapter.stream.OutputStreamHolder;
+import com.lenderman.nabu.adapter.utilities.CRC;
+
+/**
+ * Builds an outgoing NHACP frame in place, in a buffer borrowed from a shared
+ * pool. Room for the length is kept at the front, the payload is written
+ * straight after it, and the CRC is worked out as it goes, so the whole frame
+ * is sent as one contiguous write with nothing copied or boxed on the way.
+ */
+public class NHACPFrameEncoder
+{
+    /**
+     * Size of pooled buffers, enough for the largest frame the NABU can ask
+     * for, its length and its CRC
+     */
+    private static final int BufferSize = 0x8400;
+
+    /**
+     * Most buffers kept in the pool
+     */
+    private static final int PoolSize = 16;
+
+    /**
+     * Bytes kept for the frame length
+     */
+    private static final int LengthSize = 2;
+
+    /**
+     * Buffers free to be borrowed
+     */
+    private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * Buffer the frame is built in, borrowed on the first write
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * CRC of the payload written so far
+     */
+    private int crc = CRC.startNhacpCRC();
+
+    /**
+     * Write bytes to the payload
+     * 
+     * @param Integer... bytes
+     */
+    public void writeBytes(Integer... bytes)
+    {
+        this.reserve(bytes.length);
+        int start = buffer.position();
+        for (Integer b : bytes)
+        {
+            buffer.put(b.byteValue());
+        }
+        this.written(start);
+    }
+
+    /**
+     * Write bytes to the payload
+     * 
+     * @param byte[] bytes
+     */
+    public void writeBytes(byte[] bytes)
+    {
+        this.writeBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write part of a byte array to the payload
+     * 
+     * @param byte[] bytes
+     * @param int offset
+     * @param int length
+     */
+    public void writeBytes(byte[] bytes, int offset, int length)
+    {
+        this.reserve(length);
+        int start = buffer.position();
+        buffer.put(bytes, offset, length);
+        this.written(start);
+    }
+
+    /**
+     * Write a little-endian short to the payload
+     * 
+     * @param Integer shortVal
+     */
+    public void writeShort(Integer shortVal)
+    {
+        this.reserve(2);
+        int start = buffer.position();
+        buffer.putShort(shortVal.shortValue());
+        this.written(start);
+    }
+
+    /**
+     * Write a little-endian int to the payload
+     * 
+     * @param Long intVal
+     */
+    public void writeInt(Long intVal)
+    {
+        this.reserve(4);
+        int start = buffer.position();
+        buffer.putInt(intVal.intValue());
+        this.written(start);
+    }
+
+    /**
+     * Write a string to the payload, prepended with a LEB 128 length
+     * 
+     * @param String value
+     */
+    public void writeString(String value)
+    {
+        byte[] chars = value.getBytes();
+        this.reserve(5 + chars.length);
+        int start = buffer.position();
+        int length = value.length();
+        while (length >= 0x80)
+        {
+            buffer.put((byte) ((length & 0x7f) | 0x80));
+            length >>>= 7;
+        }
+        buffer.put((byte) length);
+        buffer.put(chars);
+        this.written(start);
+    }
+
+    /**
+     * Fill in the length, add the CRC if the session asked for one, send the
+     * frame and give its buffer back to the pool
+     * 
+     * @param OutputStreamHolder output
+     * @param boolean withCrc whether to end the frame with its CRC
+     */
+    public void writeTo(OutputStreamHolder output, boolean withCrc)
+            throws Exception
+    {
+        this.reserve(1);
+        if (withCrc)
+        {
+            buffer.put((byte) crc);
+        }
+        buffer.putShort(0, (short) (buffer.position() - LengthSize));
+        buffer.flip();
+
+        try
+        {
+            output.writeBytes(buffer);
+        }
+        finally
+        {
+            ByteBuffer used = buffer;
+            buffer = null;
+            crc = CRC.startNhacpCRC();
+            if (used.capacity() == BufferSize && pool.size() < PoolSize)
+            {
+                pool.offer(used);
+            }
+        }
+    }
+
+    /**
+     * Make sure the buffer has room for more bytes, borrowing it first if
+     * needed, and growing it for a frame larger than the pooled size
+     * 
+     * @param int more
+     */
+    private void reserve(int more)
+    {
+        if (buffer == null)
+        {
+            buffer = pool.poll();
+            if (buffer == null)
+            {
+                buffer = ByteBuffer.allocate(BufferSize);
+            }
+            buffer.clear();
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(LengthSize);
+        }
+
+        if (buffer.remaining() < more)
+        {
+            ByteBuffer larger = ByteBuffer.allocate(
+                    Math.max(buffer.capacity() * 2, buffer.position() + more));
+            larger.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    /**
+     * Add bytes just written to the payload to the CRC
+     * 
+     * @param int start where the bytes start in the buffer
+     */
+    private void written(int start)
+    {
+        crc = CRC.updateNhacpCRC(crc, buffer.array(), start,
+                buffer.position() - start);
+    }
+}
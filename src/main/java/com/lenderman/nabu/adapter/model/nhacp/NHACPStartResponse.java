@@ -72,11 +72,10 @@ public class NHACPStartResponse
         // 2 bytes for the version
         // 1 byte for the length of the string
         // string
-        int length = 1 + 1 + 2 + 1 + adaptorName.length();
-
-        sioc.getOs().writeShort(length);
-        sioc.getOs().writeBytes(TYPE, sessionId);
-        sioc.getOs().writeShort(version);
-        sioc.getOs().writeString(adaptorName);
+        NHACPFrameEncoder frame = new NHACPFrameEncoder();
+        frame.writeBytes(TYPE, sessionId);
+        frame.writeShort(version);
+        frame.writeString(adaptorName);
+        frame.writeTo(sioc.getOs(), false);
     }
 }
@@ -0,0 +1,84 @@
+package com.lenderman.nabu.adapter.model.packet;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.util.AbstractList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+
+/**
+ * Packets of a segment that are only built when they are first asked for,
+ * and kept from then on. The NABU usually asks for packet 0 long before it
+ * needs the rest, so it doesn't have to wait on the whole segment.
+ */
+public class LazyPacketList extends AbstractList<NabuPacket>
+{
+    /**
+     * Packets built so far
+     */
+    private AtomicReferenceArray<NabuPacket> packets;
+
+    /**
+     * Builds the packet at an index
+     */
+    private IntFunction<NabuPacket> factory;
+
+    /**
+     * Constructor
+     * 
+     * @param int size number of packets in the segment
+     * @param IntFunction<NabuPacket> factory builds the packet at an index
+     */
+    public LazyPacketList(int size, IntFunction<NabuPacket> factory)
+    {
+        this.packets = new AtomicReferenceArray<NabuPacket>(size);
+        this.factory = factory;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NabuPacket get(int index)
+    {
+        NabuPacket packet = packets.get(index);
+        if (packet == null)
+        {
+            // Two clients may race to build the same packet, both get the
+            // one that made it in first
+            packets.compareAndSet(index, null, factory.apply(index));
+            packet = packets.get(index);
+        }
+        return packet;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        return packets.length();
+    }
+}
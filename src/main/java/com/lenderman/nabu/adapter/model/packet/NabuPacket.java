@@ -23,8 +23,8 @@ package com.lenderman.nabu.adapter.model.packet;
  * SOFTWARE.
  */
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 public class NabuPacket
 {
@@ -49,9 +49,16 @@ public class NabuPacket
     private byte sequenceNumber;
 
     /**
-     * Segment Data
+     * Segment Data, header followed by payload and CRC
      */
-    private List<Byte> segmentData;
+    private ByteBuffer segmentData;
+
+    /**
+     * Segment data as it goes out on the wire, escaped and followed by the
+     * end of packet marker. Built once so that resending the packet costs
+     * nothing.
+     */
+    private ByteBuffer wireData;
 
     /**
      * The maximum size of a nabu segment, header + data + crc
@@ -71,42 +78,136 @@ public class NabuPacket
         return sequenceNumber;
     }
 
+    /**
+     * Gets the length of this segments data
+     * 
+     * @return int
+     */
+    public int getLength()
+    {
+        return segmentData.remaining();
+    }
+
     /**
      * Gets this segments data (what actually gets sent to the nabu)
      * 
-     * @return List<Byte>
+     * @return read only ByteBuffer
+     */
+    public ByteBuffer getSegmentData()
+    {
+        return segmentData.asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets the header of this segments data
+     * 
+     * @return read only ByteBuffer
+     */
+    public ByteBuffer getHeader()
+    {
+        return this.view(0, PacketHeaderLength);
+    }
+
+    /**
+     * Gets the payload of this segments data, between the header and the CRC
+     * 
+     * @return read only ByteBuffer
+     */
+    public ByteBuffer getPayload()
+    {
+        return this.view(PacketHeaderLength,
+                segmentData.remaining() - PacketHeaderLength - CrcLength);
+    }
+
+    /**
+     * Gets the CRC at the end of this segments data
+     * 
+     * @return read only ByteBuffer
      */
-    public List<Byte> getSegmentData()
+    public ByteBuffer getCrc()
     {
-        return segmentData;
+        return this.view(segmentData.remaining() - CrcLength, CrcLength);
     }
 
     /**
-     * Gets this segments data, escaping special characters
+     * Gets this segments data as it is sent to the nabu, with special
+     * characters escaped and the end of packet marker appended. The bytes are
+     * shared and must not be modified.
      * 
-     * @return List<Integer>
+     * @return ByteBuffer
      */
-    public List<Integer> getEscapedData()
+    public ByteBuffer getWireData()
     {
-        List<Integer> escapedData = new ArrayList<Integer>();
-        for (Byte b : segmentData)
+        return wireData.duplicate();
+    }
+
+    /**
+     * Gets the length of this segments data as it is sent to the nabu
+     * 
+     * @return int
+     */
+    public int getWireLength()
+    {
+        return wireData.remaining();
+    }
+
+    /**
+     * Read only view of part of the segment data
+     * 
+     * @param int offset
+     * @param int length
+     * @return ByteBuffer
+     */
+    private ByteBuffer view(int offset, int length)
+    {
+        ByteBuffer view = segmentData.asReadOnlyBuffer();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param byte sequenceNumber
+     * @param byte[] segmentData header, payload and CRC, owned by the packet
+     *        from here on
+     */
+    public NabuPacket(byte sequenceNumber, byte[] segmentData)
+    {
+        this.sequenceNumber = sequenceNumber;
+        this.segmentData = ByteBuffer.wrap(segmentData);
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream(
+                segmentData.length + segmentData.length / 16 + 2);
+        for (byte b : segmentData)
         {
             // need to escape 0x10
             if (b == 0x10)
             {
-                escapedData.add(0x10);
+                wire.write(0x10);
             }
-            escapedData.add(Byte.toUnsignedInt(b));
+            wire.write(b);
         }
-        return escapedData;
+        wire.write(0x10);
+        wire.write(0xE1);
+        this.wireData = ByteBuffer.wrap(wire.toByteArray());
     }
 
     /**
-     * Constructor
+     * Constructor for a packet that was framed ahead of time, such as one
+     * held in a cycle bundle
+     * 
+     * @param byte sequenceNumber
+     * @param ByteBuffer segmentData header, payload and CRC
+     * @param ByteBuffer wireData escaped segment data and end of packet
+     *        marker
      */
-    public NabuPacket(byte sequenceNumber, List<Byte> segmentData)
+    public NabuPacket(byte sequenceNumber, ByteBuffer segmentData,
+            ByteBuffer wireData)
     {
         this.sequenceNumber = sequenceNumber;
-        this.segmentData = segmentData;
+        this.segmentData = segmentData.slice();
+        this.wireData = wireData.slice();
     }
-}
\ No newline at end of file
+}
@@ -37,6 +37,12 @@ public class NabuSegment
      */
     private int name;
 
+    /**
+     * Approximate number of bytes held by the segment once all of its packets
+     * are built
+     */
+    private long size;
+
     /**
      * @return List<NabuPacket>
      */
@@ -53,6 +59,14 @@ public class NabuSegment
         return name;
     }
 
+    /**
+     * @return long
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
     /**
      * Constructor
      */
@@ -60,5 +74,24 @@ public class NabuSegment
     {
         this.packets = packets;
         this.name = name;
+        for (NabuPacket packet : packets)
+        {
+            this.size += packet.getLength() + packet.getWireLength();
+        }
+    }
+
+    /**
+     * Constructor for a segment whose packets are built on demand
+     * 
+     * @param List<NabuPacket> packets
+     * @param int name
+     * @param long size approximate number of bytes held once all of the
+     *        packets are built
+     */
+    public NabuSegment(List<NabuPacket> packets, int name, long size)
+    {
+        this.packets = packets;
+        this.name = name;
+        this.size = size;
     }
 }
@@ -65,6 +65,11 @@ public class Settings
      */
     public static final String HeadlessBootResource = "BOOTMENU.NABU";
 
+    /**
+     * Name of the file the segment prefetch model is saved to
+     */
+    public static final String PrefetchModelFile = "prefetch.model";
+
     /**
      * Top level headless menu items
      */
@@ -123,7 +128,7 @@ public class Settings
      */
     private enum ParseState
     {
-        start, port, mode, baud, stopbits, path, preservepath
+        start, port, mode, baud, stopbits, path, preservepath, eventloops, cachesize, warmupthreads, compile, missttl, refresh, maxstale, webtimeout, webretries, hedge, metricsport, record, recordsize
     }
 
     /**
@@ -131,6 +136,95 @@ public class Settings
      */
     private boolean askForChannel;
 
+    /**
+     * Whether or not to serve multiple TCP/IP clients at once
+     */
+    private boolean multiClient;
+
+    /**
+     * Whether or not multiple TCP/IP clients are served by non-blocking event
+     * loops
+     */
+    private boolean nio;
+
+    /**
+     * The number of event loop threads used for non-blocking TCP/IP clients
+     */
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Whether or not to learn the segment order and prefetch segments
+     */
+    private boolean prefetch;
+
+    /**
+     * Whether or not to load the whole cycle at startup
+     */
+    private boolean warmup;
+
+    /**
+     * Number of segments loaded at the same time during warm up
+     */
+    private int warmupThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Bundle to compile the path into instead of serving it, null to serve
+     */
+    private String compileOutput;
+
+    /**
+     * Seconds that missing segments and directory listings are remembered
+     */
+    private int missTtl = 30;
+
+    /**
+     * Seconds a segment loaded from the web is fresh for, 0 to never refresh
+     * it
+     */
+    private int refresh = 300;
+
+    /**
+     * Seconds past fresh that a stale segment is still served while it is
+     * refreshed
+     */
+    private int maxStale = 3600;
+
+    /**
+     * Seconds a web file may take to load, over all retries
+     */
+    private int webTimeout = 30;
+
+    /**
+     * Times a failed web request is retried
+     */
+    private int webRetries = 2;
+
+    /**
+     * Milliseconds before a second request is sent next to a slow web
+     * request, 0 to never send one
+     */
+    private int hedge;
+
+    /**
+     * Local port to serve metrics on, 0 to not serve them
+     */
+    private int metricsPort;
+
+    /**
+     * Directory to record NABU traffic to, null to not record it
+     */
+    private String recordPath;
+
+    /**
+     * Most megabytes the traffic recordings may take
+     */
+    private int recordSize = 256;
+
+    /**
+     * Memory budget of the segment cache, in megabytes
+     */
+    private int cacheSize = 64;
+
     /**
      * The baud rate used by the nabu
      */
@@ -184,6 +278,142 @@ public class Settings
         return askForChannel;
     }
 
+    /**
+     * @return boolean
+     */
+    public boolean isMultiClient()
+    {
+        return multiClient;
+    }
+
+    /**
+     * @return boolean
+     */
+    public boolean isNio()
+    {
+        return nio;
+    }
+
+    /**
+     * @return int
+     */
+    public int getEventLoops()
+    {
+        return eventLoops;
+    }
+
+    /**
+     * @return boolean
+     */
+    public boolean isPrefetch()
+    {
+        return prefetch;
+    }
+
+    /**
+     * @return boolean
+     */
+    public boolean isWarmup()
+    {
+        return warmup;
+    }
+
+    /**
+     * @return int
+     */
+    public int getWarmupThreads()
+    {
+        return warmupThreads;
+    }
+
+    /**
+     * @return String bundle to compile the path into, or null
+     */
+    public String getCompileOutput()
+    {
+        return compileOutput;
+    }
+
+    /**
+     * @return int
+     */
+    public int getMissTtl()
+    {
+        return missTtl;
+    }
+
+    /**
+     * @return int
+     */
+    public int getRefresh()
+    {
+        return refresh;
+    }
+
+    /**
+     * @return int
+     */
+    public int getMaxStale()
+    {
+        return maxStale;
+    }
+
+    /**
+     * @return int
+     */
+    public int getMetricsPort()
+    {
+        return metricsPort;
+    }
+
+    /**
+     * @return String
+     */
+    public String getRecordPath()
+    {
+        return recordPath;
+    }
+
+    /**
+     * @return int
+     */
+    public int getRecordSize()
+    {
+        return recordSize;
+    }
+
+    /**
+     * @return int
+     */
+    public int getWebTimeout()
+    {
+        return webTimeout;
+    }
+
+    /**
+     * @return int
+     */
+    public int getWebRetries()
+    {
+        return webRetries;
+    }
+
+    /**
+     * @return int
+     */
+    public int getHedge()
+    {
+        return hedge;
+    }
+
+    /**
+     * @return int
+     */
+    public int getCacheSize()
+    {
+        return cacheSize;
+    }
+
     /**
      * @return SourceLocation
      */
@@ -313,6 +543,41 @@ public class Settings
         }
     }
 
+    /**
+     * Copy Constructor, gives each client of a multi-client server its own
+     * settings so that one NABU changing cycles does not affect the others
+     */
+    public Settings(Settings settings)
+    {
+        this.askForChannel = settings.askForChannel;
+        this.multiClient = settings.multiClient;
+        this.nio = settings.nio;
+        this.eventLoops = settings.eventLoops;
+        this.cacheSize = settings.cacheSize;
+        this.prefetch = settings.prefetch;
+        this.warmup = settings.warmup;
+        this.warmupThreads = settings.warmupThreads;
+        this.compileOutput = settings.compileOutput;
+        this.missTtl = settings.missTtl;
+        this.refresh = settings.refresh;
+        this.maxStale = settings.maxStale;
+        this.webTimeout = settings.webTimeout;
+        this.webRetries = settings.webRetries;
+        this.hedge = settings.hedge;
+        this.metricsPort = settings.metricsPort;
+        this.recordPath = settings.recordPath;
+        this.recordSize = settings.recordSize;
+        this.baudRate = settings.baudRate;
+        this.stopBits = settings.stopBits;
+        this.serialPort = settings.serialPort;
+        this.operatingMode = settings.operatingMode;
+        this.path = settings.path;
+        this.presevedPath = settings.presevedPath;
+        this.tcpIpPort = settings.tcpIpPort;
+        this.sourceLocation = settings.sourceLocation;
+        this.cycles = settings.cycles;
+    }
+
     /**
      * Constructor
      */
@@ -422,6 +687,58 @@ public class Settings
                     case "-askforchannel":
                         this.askForChannel = true;
                         break;
+                    case "-multiclient":
+                        this.multiClient = true;
+                        break;
+                    case "-nio":
+                        this.multiClient = true;
+                        this.nio = true;
+                        break;
+                    case "-eventloops":
+                        parseState = ParseState.eventloops;
+                        break;
+                    case "-cachesize":
+                        parseState = ParseState.cachesize;
+                        break;
+                    case "-prefetch":
+                        this.prefetch = true;
+                        break;
+                    case "-warmup":
+                        this.warmup = true;
+                        break;
+                    case "-warmupthreads":
+                        parseState = ParseState.warmupthreads;
+                        break;
+                    case "-webtimeout":
+                        parseState = ParseState.webtimeout;
+                        break;
+                    case "-webretries":
+                        parseState = ParseState.webretries;
+                        break;
+                    case "-hedge":
+                        parseState = ParseState.hedge;
+                        break;
+                    case "-missttl":
+                        parseState = ParseState.missttl;
+                        break;
+                    case "-refresh":
+                        parseState = ParseState.refresh;
+                        break;
+                    case "-maxstale":
+                        parseState = ParseState.maxstale;
+                        break;
+                    case "-metricsport":
+                        parseState = ParseState.metricsport;
+                        break;
+                    case "-record":
+                        parseState = ParseState.record;
+                        break;
+                    case "-recordsize":
+                        parseState = ParseState.recordsize;
+                        break;
+                    case "-compile":
+                        parseState = ParseState.compile;
+                        break;
                     case "-path":
                         parseState = ParseState.path;
                         break;
@@ -437,6 +754,58 @@ public class Settings
                     this.presevedPath = argument;
                     parseState = ParseState.start;
                     break;
+                case eventloops:
+                    this.eventLoops = Integer.parseInt(argument);
+                    parseState = ParseState.start;
+                    break;
+                case cachesize:
+                    this.cacheSize = Integer.parseInt(argument);
+                    parseState = ParseState.start;
+                    break;
+                case warmupthreads:
+                    this.warmupThreads = Integer.parseInt(argument);
+                    parseState = ParseState.start;
+                    break;
+                case webtimeout:
+                    this.webTimeout = Integer.parseInt(argument);
+                    parseState = ParseState.start;
+                    break;
+                case webretries:
+                    this.webRetries = Integer.parseInt(argument);
+                    parseState = ParseState.start;
+                    break;
+                case hedge:
+                    this.hedge = Integer.parseInt(argument);
+                    parseState = ParseState.start;
+                    break;
+                case missttl:
+                    this.missTtl = Integer.parseInt(argument);
+                    parseState = ParseState.start;
+                    break;
+                case refresh:
+                    this.refresh = Integer.parseInt(argument);
+                    parseState = ParseState.start;
+                    break;
+                case maxstale:
+                    this.maxStale = Integer.parseInt(argument);
+                    parseState = ParseState.start;
+                    break;
+                case metricsport:
+                    this.metricsPort = Integer.parseInt(argument);
+                    parseState = ParseState.start;
+                    break;
+                case record:
+                    this.recordPath = argument;
+                    parseState = ParseState.start;
+                    break;
+                case recordsize:
+                    this.recordSize = Integer.parseInt(argument);
+                    parseState = ParseState.start;
+                    break;
+                case compile:
+                    this.compileOutput = argument;
+                    parseState = ParseState.start;
+                    break;
                 default:
                     break;
                 }
@@ -447,7 +816,7 @@ public class Settings
             this.DisplayHelp();
         }
 
-        if (this.operatingMode == null)
+        if (this.operatingMode == null && this.compileOutput == null)
         {
             this.DisplayHelp();
         }
@@ -461,7 +830,8 @@ public class Settings
         System.out.println("NABU console server usage");
         System.out.println("");
         System.out.println("Parameters:");
-        System.out.println("-mode -port -askforchannel -path -preservepath");
+        System.out.println(
+                "-mode -port -askforchannel -path -preservepath -multiclient -nio -eventloops -cachesize -prefetch -warmup -warmupthreads -webtimeout -webretries -hedge -missttl -refresh -maxstale -metricsport -record -recordsize -compile");
         System.out.println();
         System.out.println(
                 "mode options: Serial, TCPIP - listen to serial port or TCPIP port");
@@ -478,7 +848,41 @@ public class Settings
         System.out.println("       headless, to run in headless mode");
         System.out.println();
         System.out.println(
-                "preservepath: (for web mode only) output location to save off data files as they are accessed");
+                "preservepath: (for web mode only) output location to save off data files as they are accessed, and to serve them from while they have not changed");
+        System.out.println(
+                "multiclient: (for TCPIP mode only) serve many emulators at once from one listener");
+        System.out.println(
+                "nio: (for TCPIP mode only) like multiclient, but serviced by non-blocking event loops");
+        System.out.println(
+                "eventloops: number of event loop threads used by nio, defaults to the processor count");
+        System.out.println(
+                "cachesize: megabytes of loaded segments to keep in memory, defaults to 64");
+        System.out.println(
+                "prefetch: learn the order segments are asked for and load the next ones ahead of time");
+        System.out.println(
+                "warmup: load the whole cycle into the cache at startup, until the cache is full");
+        System.out.println(
+                "warmupthreads: number of segments loaded at once during warmup, defaults to the processor count");
+        System.out.println(
+                "webtimeout: seconds a web file may take to load, over all retries, defaults to 30");
+        System.out.println(
+                "webretries: times a failed web request is retried, defaults to 2");
+        System.out.println(
+                "hedge: milliseconds before a slow web request is sent again alongside the first, off by default");
+        System.out.println(
+                "missttl: seconds to remember missing segments and directory listings, defaults to 30, 0 to always look again");
+        System.out.println(
+                "refresh: seconds a segment loaded from the web is served before it is loaded again in the background, defaults to 300, 0 to never refresh");
+        System.out.println(
+                "maxstale: seconds past refresh that a segment is still served while it is loaded again, defaults to 3600");
+        System.out.println(
+                "metricsport: serve metrics for Prometheus on this port of localhost, at /metrics, off by default");
+        System.out.println(
+                "record: directory to record every byte sent to and received from each NABU, with timestamps, off by default");
+        System.out.println(
+                "recordsize: most megabytes the recordings may take, oldest deleted first, defaults to 256");
+        System.out.println(
+                "compile: compile the .nabu and .pak files of the local path into this bundle file and exit, no mode needed");
         System.out.println();
         System.out.println();
         System.out.println("Serial Mode example:");
@@ -0,0 +1,403 @@
+package com.lenderman.nabu.adapter.server;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.lenderman.nabu.adapter.model.packet.LazyPacketList;
+import com.lenderman.nabu.adapter.model.packet.NabuPacket;
+import com.lenderman.nabu.adapter.model.packet.NabuSegment;
+
+/**
+ * A whole cycle in one file, with every packet already framed, CRC'd and
+ * escaped. The file is memory mapped and packets are served straight from the
+ * mapping, so opening a bundle is near-instant and every adapter process
+ * serving it shares the same page cache pages.
+ * 
+ * Layout, big-endian:
+ * 
+ * <pre>
+ * header   magic "NABUBNDL", int version, int segment count
+ * index    per segment: int segment number, int packet count,
+ *          long offset of its packet table
+ * tables   per packet: int data offset, int wire offset,
+ *          short data length, short wire length, byte sequence number,
+ *          3 bytes padding
+ * data     per packet: segment data, then wire data
+ * </pre>
+ */
+public class CycleBundle
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager
+            .getLogger(CycleBundle.class);
+
+    /**
+     * Extension of cycle bundle files
+     */
+    public static final String Extension = ".bundle";
+
+    /**
+     * First bytes of every bundle
+     */
+    private static final byte[] Magic = "NABUBNDL"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Version of the layout
+     */
+    private static final int Version = 1;
+
+    /**
+     * Length of the header
+     */
+    private static final int HeaderLength = 16;
+
+    /**
+     * Length of a segment index entry
+     */
+    private static final int SegmentEntryLength = 16;
+
+    /**
+     * Length of a packet table entry
+     */
+    private static final int PacketEntryLength = 16;
+
+    /**
+     * Milliseconds between checks that the bundle file was not replaced, the
+     * NABU asks for a segment once per packet
+     */
+    private static final long SourceCheckMillis = 1000;
+
+    /**
+     * The mapped or read bundle
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * The bundle file as it was when it was mapped or read
+     */
+    private Optional<SegmentSource> source;
+
+    /**
+     * When the bundle file was last found unchanged
+     */
+    private volatile long checked = System.currentTimeMillis();
+
+    /**
+     * Segments of the bundle, keyed by segment number
+     */
+    private Map<Integer, NabuSegment> segments = new HashMap<Integer, NabuSegment>();
+
+    /**
+     * Constructor
+     */
+    private CycleBundle(ByteBuffer buffer, Optional<SegmentSource> source)
+    {
+        this.buffer = buffer;
+        this.source = source;
+    }
+
+    /**
+     * Map a bundle file
+     * 
+     * @param Path file
+     * @return CycleBundle
+     */
+    public static CycleBundle open(Path file) throws IOException
+    {
+        Optional<SegmentSource> source = SegmentSource.of(file.toString());
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ))
+        {
+            // The mapping stays valid once the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+
+        CycleBundle bundle = parse(file, buffer, source);
+        logger.debug("Mapped {} segments from {}", bundle.getSegmentCount(),
+                file);
+        return bundle;
+    }
+
+    /**
+     * Read a bundle file into memory rather than mapping it, so the file can
+     * be replaced while the bundle is in use, even on Windows
+     * 
+     * @param Path file
+     * @return CycleBundle
+     */
+    public static CycleBundle read(Path file) throws IOException
+    {
+        Optional<SegmentSource> source = SegmentSource.of(file.toString());
+        return parse(file, ByteBuffer.wrap(Files.readAllBytes(file)), source);
+    }
+
+    /**
+     * Index the segments of a bundle
+     * 
+     * @param Path file the bundle came from
+     * @param ByteBuffer buffer contents of the bundle
+     * @param Optional<SegmentSource> source the bundle file
+     * @return CycleBundle
+     */
+    private static CycleBundle parse(Path file, ByteBuffer buffer,
+            Optional<SegmentSource> source) throws IOException
+    {
+        byte[] magic = new byte[Magic.length];
+        ByteBuffer header = buffer.duplicate();
+        if (header.remaining() < HeaderLength)
+        {
+            throw new IOException(file + " is not a cycle bundle");
+        }
+        header.get(magic);
+        if (!Arrays.equals(magic, Magic))
+        {
+            throw new IOException(file + " is not a cycle bundle");
+        }
+        int version = header.getInt();
+        if (version != Version)
+        {
+            throw new IOException(
+                    file + " is bundle version " + version + ", not " + Version);
+        }
+
+        CycleBundle bundle = new CycleBundle(buffer, source);
+        int count = header.getInt();
+        for (int i = 0; i < count; i++)
+        {
+            int entry = HeaderLength + i * SegmentEntryLength;
+            int segmentNumber = buffer.getInt(entry);
+            int packetCount = buffer.getInt(entry + 4);
+            int table = (int) buffer.getLong(entry + 8);
+
+            LazyPacketList packets = new LazyPacketList(packetCount,
+                    index -> bundle.packet(table + index * PacketEntryLength));
+            bundle.segments.put(segmentNumber, new NabuSegment(packets,
+                    segmentNumber, (long) packetCount * PacketEntryLength));
+        }
+        return bundle;
+    }
+
+    /**
+     * Get a segment of the bundle
+     * 
+     * @param int segmentNumber
+     * @return Optional<NabuSegment>
+     */
+    public Optional<NabuSegment> getSegment(int segmentNumber)
+    {
+        return Optional.ofNullable(segments.get(segmentNumber));
+    }
+
+    /**
+     * @return int number of segments in the bundle
+     */
+    public int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+    /**
+     * Check that the bundle file has not been replaced since it was mapped
+     * or read, looking at the file at most once a second
+     * 
+     * @return boolean
+     */
+    public boolean isCurrent()
+    {
+        long now = System.currentTimeMillis();
+        if (now - checked < SourceCheckMillis)
+        {
+            return source.isPresent();
+        }
+        if (source.isPresent() && source.get().isCurrent())
+        {
+            checked = now;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Build the packet described by a packet table entry
+     * 
+     * @param int entry offset of the packet table entry
+     * @return NabuPacket
+     */
+    private NabuPacket packet(int entry)
+    {
+        int dataOffset = buffer.getInt(entry);
+        int wireOffset = buffer.getInt(entry + 4);
+        int dataLength = buffer.getShort(entry + 8) & 0xFFFF;
+        int wireLength = buffer.getShort(entry + 10) & 0xFFFF;
+        byte sequenceNumber = buffer.get(entry + 12);
+
+        return new NabuPacket(sequenceNumber,
+                this.slice(dataOffset, dataLength),
+                this.slice(wireOffset, wireLength));
+    }
+
+    /**
+     * Read only view of part of the bundle
+     * 
+     * @param int offset
+     * @param int length
+     * @return ByteBuffer
+     */
+    private ByteBuffer slice(int offset, int length)
+    {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    /**
+     * Write segments to a bundle file. The bundle is written aside and moved
+     * into place, so adapters that have the old one mapped keep serving it.
+     * 
+     * @param Path file
+     * @param List<NabuSegment> segments
+     */
+    public static void write(Path file, List<NabuSegment> segments)
+            throws IOException
+    {
+        List<NabuSegment> sorted = new ArrayList<NabuSegment>(segments);
+        Collections.sort(sorted,
+                (a, b) -> Integer.compare(a.getName(), b.getName()));
+
+        // Lay out the tables, then the packet data after them
+        long tables = HeaderLength + (long) sorted.size() * SegmentEntryLength;
+        long data = tables;
+        for (NabuSegment segment : sorted)
+        {
+            data += (long) segment.getPackets().size() * PacketEntryLength;
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp))))
+        {
+            out.write(Magic);
+            out.writeInt(Version);
+            out.writeInt(sorted.size());
+
+            long table = tables;
+            for (NabuSegment segment : sorted)
+            {
+                out.writeInt(segment.getName());
+                out.writeInt(segment.getPackets().size());
+                out.writeLong(table);
+                table += (long) segment.getPackets().size()
+                        * PacketEntryLength;
+            }
+
+            long offset = data;
+            for (NabuSegment segment : sorted)
+            {
+                for (NabuPacket packet : segment.getPackets())
+                {
+                    out.writeInt(checkOffset(offset));
+                    out.writeInt(checkOffset(offset + packet.getLength()));
+                    out.writeShort(packet.getLength());
+                    out.writeShort(packet.getWireLength());
+                    out.writeByte(packet.getSequenceNumber());
+                    out.write(new byte[3]);
+                    offset += packet.getLength() + packet.getWireLength();
+                }
+            }
+
+            for (NabuSegment segment : sorted)
+            {
+                for (NabuPacket packet : segment.getPackets())
+                {
+                    write(out, packet.getSegmentData());
+                    write(out, packet.getWireData());
+                }
+            }
+        }
+
+        try
+        {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ex)
+        {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Make sure an offset can be mapped
+     * 
+     * @param long offset
+     * @return int
+     */
+    private static int checkOffset(long offset) throws IOException
+    {
+        if (offset > Integer.MAX_VALUE)
+        {
+            throw new IOException("Cycle bundle would be larger than 2GB");
+        }
+        return (int) offset;
+    }
+
+    /**
+     * Write the remaining bytes of a buffer
+     * 
+     * @param DataOutputStream out
+     * @param ByteBuffer bytes
+     */
+    private static void write(DataOutputStream out, ByteBuffer bytes)
+            throws IOException
+    {
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.duplicate().get(copy);
+        out.write(copy);
+    }
+}
@@ -0,0 +1,426 @@
+package com.lenderman.nabu.adapter.server;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.lenderman.nabu.adapter.model.packet.NabuPacket;
+import com.lenderman.nabu.adapter.model.packet.NabuSegment;
+
+/**
+ * Compiles a directory of .nabu and .pak files into a cycle bundle ahead of
+ * time, so the adapter serving it never packetizes or checks anything at
+ * request time. Segments are compiled several at a time.
+ * 
+ * A manifest next to the bundle records a content hash for every input file.
+ * On the next run, files whose hash did not change are copied from the old
+ * bundle instead of being compiled again.
+ */
+public class CycleCompiler
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager
+            .getLogger(CycleCompiler.class);
+
+    /**
+     * Added to the bundle file name to name its manifest
+     */
+    public static final String ManifestExtension = ".manifest";
+
+    /**
+     * Most segments to compile at the same time
+     */
+    private int threads;
+
+    /**
+     * What became of one input file
+     */
+    private static class CompiledSegment
+    {
+        /**
+         * Segment number
+         */
+        private int segmentNumber;
+
+        /**
+         * Input file
+         */
+        private Path file;
+
+        /**
+         * Content hash of the input file
+         */
+        private String hash;
+
+        /**
+         * Compiled segment, null if it could not be compiled
+         */
+        private NabuSegment segment;
+
+        /**
+         * Packets whose CRC had to be fixed
+         */
+        private int crcRepairs;
+
+        /**
+         * Whether the segment was copied from the previous bundle
+         */
+        private boolean unchanged;
+
+        /**
+         * Whether the file is too large to packetize
+         */
+        private boolean oversized;
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param int threads most segments to compile at the same time
+     */
+    public CycleCompiler(int threads)
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * Compile the segment files of a directory into a bundle
+     * 
+     * @param Path directory holding the segment files
+     * @param Path output bundle file
+     * @return boolean true if every segment file was compiled
+     */
+    public boolean compile(Path directory, Path output) throws Exception
+    {
+        long start = System.currentTimeMillis();
+        Map<Integer, Path> inputs = this.listInputs(directory);
+        logger.info("Compiling {} segment files from {}", inputs.size(),
+                directory);
+
+        Path manifestFile = output
+                .resolveSibling(output.getFileName() + ManifestExtension);
+        Map<String, String[]> manifest = this.readManifest(manifestFile);
+
+        Optional<CycleBundle> previous = Optional.empty();
+        if (!manifest.isEmpty() && Files.exists(output))
+        {
+            try
+            {
+                // Read, not mapped, since it is about to be replaced, and a
+                // mapped file can't be replaced on Windows
+                previous = Optional.of(CycleBundle.read(output));
+            }
+            catch (Exception ex)
+            {
+                logger.warn("Could not open {}, compiling everything: {}",
+                        output, ex.getMessage());
+            }
+        }
+
+        List<Callable<CompiledSegment>> tasks = new ArrayList<Callable<CompiledSegment>>();
+        for (Map.Entry<Integer, Path> input : inputs.entrySet())
+        {
+            Optional<CycleBundle> bundle = previous;
+            tasks.add(() -> this.compileSegment(input.getKey(),
+                    input.getValue(), manifest, bundle));
+        }
+
+        List<CompiledSegment> results = new ArrayList<CompiledSegment>();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try
+        {
+            for (Future<CompiledSegment> result : pool.invokeAll(tasks))
+            {
+                results.add(result.get());
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        List<NabuSegment> segments = new ArrayList<NabuSegment>();
+        int compiled = 0;
+        int failed = 0;
+        for (CompiledSegment result : results)
+        {
+            this.report(result);
+            if (result.segment != null)
+            {
+                segments.add(result.segment);
+                if (!result.unchanged)
+                {
+                    compiled++;
+                }
+            }
+            else
+            {
+                failed++;
+            }
+        }
+
+        if (compiled == 0 && previous.isPresent()
+                && previous.get().getSegmentCount() == segments.size())
+        {
+            logger.info("{} is up to date", output);
+        }
+        else
+        {
+            CycleBundle.write(output, segments);
+            this.writeManifest(manifestFile, results);
+        }
+
+        logger.info(
+                "Compiled {} segments, {} unchanged, {} failed, into {} in {} ms",
+                compiled, segments.size() - compiled, failed, output,
+                System.currentTimeMillis() - start);
+        return failed == 0;
+    }
+
+    /**
+     * Compile one segment file, or copy it from the previous bundle if it did
+     * not change
+     * 
+     * @param int segmentNumber
+     * @param Path file segment file
+     * @param Map<String, String[]> manifest of the previous bundle
+     * @param Optional<CycleBundle> previous bundle
+     * @return CompiledSegment
+     */
+    private CompiledSegment compileSegment(int segmentNumber, Path file,
+            Map<String, String[]> manifest, Optional<CycleBundle> previous)
+    {
+        CompiledSegment result = new CompiledSegment();
+        result.segmentNumber = segmentNumber;
+        result.file = file;
+
+        try
+        {
+            byte[] data = Files.readAllBytes(file);
+            result.hash = hash(data);
+
+            if (data.length > SegmentManager.MaxFileSize)
+            {
+                result.oversized = true;
+                return result;
+            }
+
+            String name = file.getFileName().toString();
+            String[] entry = manifest.get(name);
+            if (entry != null && entry[1].equals(result.hash)
+                    && previous.isPresent())
+            {
+                Optional<NabuSegment> segment = previous.get()
+                        .getSegment(segmentNumber);
+                if (segment.isPresent())
+                {
+                    result.segment = segment.get();
+                    result.crcRepairs = Integer.parseInt(entry[2]);
+                    result.unchanged = true;
+                    return result;
+                }
+            }
+
+            AtomicInteger crcRepairs = new AtomicInteger();
+            NabuSegment segment;
+            if (name.toLowerCase().endsWith(".pak"))
+            {
+                segment = SegmentManager.loadPackets(segmentNumber, data,
+                        crcRepairs);
+            }
+            else
+            {
+                segment = SegmentManager.createPackets(segmentNumber, data);
+            }
+
+            // Build, check and escape every packet now, on this thread
+            segment.getPackets().forEach(NabuPacket::getWireData);
+            result.segment = segment;
+            result.crcRepairs = crcRepairs.get();
+        }
+        catch (Exception ex)
+        {
+            logger.error("Could not compile {}", file, ex);
+        }
+        return result;
+    }
+
+    /**
+     * Log what became of a segment file
+     * 
+     * @param CompiledSegment result
+     */
+    private void report(CompiledSegment result)
+    {
+        String segmentName = String.format("%06X", result.segmentNumber);
+        if (result.oversized)
+        {
+            logger.warn("{} {}: larger than {} bytes, skipped", segmentName,
+                    result.file.getFileName(), SegmentManager.MaxFileSize);
+        }
+        else if (result.segment != null)
+        {
+            logger.info("{} {}: {} packets, {} CRC repairs{}", segmentName,
+                    result.file.getFileName(),
+                    result.segment.getPackets().size(), result.crcRepairs,
+                    result.unchanged ? ", unchanged" : "");
+        }
+    }
+
+    /**
+     * Find the segment files of a directory. When a segment is there as both
+     * .nabu and .pak, the .nabu file wins, as it does when serving.
+     * 
+     * @param Path directory
+     * @return Map<Integer, Path> segment files by segment number
+     */
+    private Map<Integer, Path> listInputs(Path directory) throws Exception
+    {
+        Map<Integer, Path> inputs = new TreeMap<Integer, Path>();
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory))
+        {
+            files = stream.collect(Collectors.toList());
+        }
+
+        for (Path file : files)
+        {
+            Matcher matcher = CycleWarmer.SegmentFile
+                    .matcher(file.getFileName().toString());
+            if (matcher.matches())
+            {
+                int segmentNumber = Integer.parseInt(matcher.group(1), 16);
+                Path existing = inputs.get(segmentNumber);
+                if (existing == null || existing.getFileName().toString()
+                        .toLowerCase().endsWith(".pak"))
+                {
+                    inputs.put(segmentNumber, file);
+                }
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Read the manifest of the previous bundle, one input file per line: file
+     * name, content hash and CRC repairs, separated by tabs
+     * 
+     * @param Path manifestFile
+     * @return Map<String, String[]> manifest lines by file name
+     */
+    private Map<String, String[]> readManifest(Path manifestFile)
+    {
+        Map<String, String[]> manifest = new HashMap<String, String[]>();
+        if (!Files.exists(manifestFile))
+        {
+            return manifest;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile,
+                StandardCharsets.UTF_8))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split("\t", 3);
+                if (fields.length == 3)
+                {
+                    manifest.put(fields[0], fields);
+                }
+            }
+        }
+        catch (Exception ex)
+        {
+            logger.warn("Could not read {}, compiling everything",
+                    manifestFile, ex);
+            manifest.clear();
+        }
+        return manifest;
+    }
+
+    /**
+     * Write the manifest of the new bundle
+     * 
+     * @param Path manifestFile
+     * @param List<CompiledSegment> results
+     */
+    private void writeManifest(Path manifestFile, List<CompiledSegment> results)
+            throws Exception
+    {
+        Path temp = manifestFile
+                .resolveSibling(manifestFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp,
+                StandardCharsets.UTF_8))
+        {
+            for (CompiledSegment result : results)
+            {
+                if (result.segment != null)
+                {
+                    writer.write(result.file.getFileName() + "\t" + result.hash
+                            + "\t" + result.crcRepairs);
+                    writer.newLine();
+                }
+            }
+        }
+        Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Content hash of a segment file
+     * 
+     * @param byte[] data
+     * @return String
+     */
+    private static String hash(byte[] data) throws Exception
+    {
+        StringBuilder hash = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data))
+        {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+}
@@ -0,0 +1,254 @@
+package com.lenderman.nabu.adapter.server;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.lenderman.nabu.adapter.loader.Loader;
+import com.lenderman.nabu.adapter.model.packet.NabuPacket;
+import com.lenderman.nabu.adapter.model.packet.NabuSegment;
+
+/**
+ * Loads every segment of a cycle into the segment cache before any NABU asks
+ * for them, several at a time, so the first boot after a deploy is as quick
+ * as the rest.
+ */
+public class CycleWarmer
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager
+            .getLogger(CycleWarmer.class);
+
+    /**
+     * Segment file names, six hex digits and a .nabu or .pak extension
+     */
+    static final Pattern SegmentFile = Pattern
+            .compile("^([0-9a-fA-F]{6})\\.(nabu|pak)$", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Loads and caches segments
+     */
+    private SegmentLoader segmentLoader;
+
+    /**
+     * Most segments to load at the same time
+     */
+    private int threads;
+
+    /**
+     * Constructor
+     * 
+     * @param SegmentLoader segmentLoader loads and caches segments
+     * @param int threads most segments to load at the same time
+     */
+    public CycleWarmer(SegmentLoader segmentLoader, int threads)
+    {
+        this.segmentLoader = segmentLoader;
+        this.threads = threads;
+    }
+
+    /**
+     * Load every segment of the cycle that fits in the cache
+     * 
+     * @param Loader loader that can reach the cycle
+     * @param String path cycle path
+     * @param String preservedPath where to preserve loaded data, or null
+     */
+    public void warmUp(Loader loader, String path, String preservedPath)
+    {
+        if (SegmentLoader.isBundle(loader, path))
+        {
+            logger.info("{} is a cycle bundle, nothing to warm up", path);
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+
+        try
+        {
+            Optional<List<Integer>> listed = this.listSegments(loader, path);
+            AtomicInteger loaded = new AtomicInteger();
+
+            if (listed.isPresent())
+            {
+                List<Integer> segments = listed.get();
+                logger.info("Warming up {} segments of {}", segments.size(),
+                        path);
+                this.load(pool, loader, path, preservedPath, segments, loaded,
+                        segments.size());
+            }
+            else
+            {
+                // Nothing to list, so ask for segments in waves from the start
+                // of the cycle until a whole wave comes back empty
+                logger.info("Warming up {} by probing for segments", path);
+                int next = 1;
+                int found;
+                do
+                {
+                    List<Integer> wave = new ArrayList<Integer>();
+                    for (int i = 0; i < threads; i++)
+                    {
+                        wave.add(next++);
+                    }
+                    int before = loaded.get();
+                    if (!this.load(pool, loader, path, preservedPath, wave,
+                            loaded, 0))
+                    {
+                        break;
+                    }
+                    found = loaded.get() - before;
+                }
+                while (found > 0);
+            }
+
+            logger.info("Warmed up {} segments of {} in {} ms, cache holds {} bytes",
+                    loaded.get(), path, System.currentTimeMillis() - start,
+                    segmentLoader.getCache().getSize());
+        }
+        catch (Exception ex)
+        {
+            logger.error("Could not warm up " + path, ex);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Load segments on the pool, and wait for them
+     * 
+     * @param ForkJoinPool pool
+     * @param Loader loader
+     * @param String path
+     * @param String preservedPath
+     * @param List<Integer> segments segments to load
+     * @param AtomicInteger loaded count of segments loaded so far
+     * @param int total total segments to report progress against, 0 if not
+     *        known
+     * @return false once the cache is full
+     */
+    private boolean load(ForkJoinPool pool, Loader loader, String path,
+            String preservedPath, List<Integer> segments, AtomicInteger loaded,
+            int total) throws Exception
+    {
+        SegmentCache cache = segmentLoader.getCache();
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+
+        for (int segmentNumber : segments)
+        {
+            tasks.add(() -> {
+                // Anything more would only push out what was just loaded
+                if (cache.getSize() >= cache.getCapacity())
+                {
+                    return false;
+                }
+
+                Optional<NabuSegment> segment = segmentLoader.getSegment(
+                        loader, path, preservedPath, segmentNumber);
+                if (segment.isPresent())
+                {
+                    // Build the packets now too, not on the first request
+                    segment.get().getPackets().forEach(NabuPacket::getWireData);
+
+                    int count = loaded.incrementAndGet();
+                    if (total > 0 && count % Math.max(1, total / 10) == 0)
+                    {
+                        logger.info("Warmed up {} of {} segments", count,
+                                total);
+                    }
+                }
+                return true;
+            });
+        }
+
+        boolean room = true;
+        for (Future<Boolean> result : pool.invokeAll(tasks))
+        {
+            room &= result.get();
+        }
+        if (!room)
+        {
+            logger.info("Segment cache is full, stopping warm up");
+        }
+        return room;
+    }
+
+    /**
+     * List the segments of the cycle
+     * 
+     * @param Loader loader
+     * @param String path
+     * @return Optional<List<Integer>>, empty if the cycle can't be listed
+     */
+    private Optional<List<Integer>> listSegments(Loader loader, String path)
+            throws Exception
+    {
+        // A single program is only ever segment 1
+        if (path.toLowerCase().endsWith(".nabu")
+                || path.toLowerCase().endsWith(".pak"))
+        {
+            return Optional.of(Collections.singletonList(1));
+        }
+
+        Optional<String> directory = loader.tryGetDirectory(path);
+        if (!directory.isPresent())
+        {
+            return Optional.empty();
+        }
+
+        Optional<List<String>> files = loader.tryListFiles(directory.get());
+        if (!files.isPresent())
+        {
+            return Optional.empty();
+        }
+
+        // The same segment may be there as both .nabu and .pak
+        TreeSet<Integer> segments = new TreeSet<Integer>();
+        for (String file : files.get())
+        {
+            Matcher matcher = SegmentFile.matcher(file);
+            if (matcher.matches())
+            {
+                segments.add(Integer.parseInt(matcher.group(1), 16));
+            }
+        }
+        return Optional.of(new ArrayList<Integer>(segments));
+    }
+}
@@ -0,0 +1,569 @@
+package com.lenderman.nabu.adapter.server;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.lenderman.nabu.adapter.extensions.FileStoreExtensions;
+import com.lenderman.nabu.adapter.extensions.HeadlessExtension;
+import com.lenderman.nabu.adapter.extensions.NHACPExtension;
+import com.lenderman.nabu.adapter.extensions.ServerExtension;
+import com.lenderman.nabu.adapter.metrics.Metrics;
+import com.lenderman.nabu.adapter.model.packet.NabuPacket;
+import com.lenderman.nabu.adapter.model.packet.NabuSegment;
+import com.lenderman.nabu.adapter.model.settings.Settings;
+import com.lenderman.nabu.adapter.stream.ByteOutputStreamHolder;
+import com.lenderman.nabu.adapter.stream.IncompleteRequestException;
+import com.lenderman.nabu.adapter.stream.InputStreamHolder;
+import com.lenderman.nabu.adapter.stream.OutputStreamHolder;
+import com.lenderman.nabu.adapter.stream.RequestBuffer;
+
+/**
+ * The NABU protocol as a state machine. Bytes from the NABU are pushed in with
+ * feed() as they arrive, and the responses are written to the output as soon
+ * as they can be decided, so the caller never has to block waiting for the
+ * NABU. This lets any transport drive the protocol, and lets the protocol run
+ * without a connection at all.
+ */
+public class NabuProtocol
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager
+            .getLogger(NabuProtocol.class);
+
+    /**
+     * What the protocol is waiting for
+     */
+    private enum State
+    {
+        // Waiting for an op code
+        Command,
+        // 0x85, waiting for the two byte channel
+        Channel,
+        // 0x84, waiting for the packet and segment numbers
+        FileRequest,
+        // 0x82, waiting for the status byte
+        GetStatus,
+        // 0x81, waiting for the two status bytes
+        SetStatus,
+        // 0x91 sent, waiting for 0x10 0x06 before sending the packet
+        PacketAck,
+        PacketAckEnd,
+        // 0x90 sent, waiting for 0x10 0x06
+        UnauthorizedAck,
+        UnauthorizedAckEnd,
+        // Waiting for the rest of an extension request
+        Extension
+    }
+
+    /**
+     * The server that owns the cycle and its segments
+     */
+    private NabuServer server;
+
+    /**
+     * Server settings
+     */
+    private Settings settings;
+
+    /**
+     * Where responses for the NABU are written
+     */
+    private OutputStreamHolder output;
+
+    /**
+     * Modules to handle non-standard NABU op-codes.
+     */
+    private List<ServerExtension> extensions;
+
+    /**
+     * Bytes of the extension request that is being received
+     */
+    private RequestBuffer request = new RequestBuffer();
+
+    /**
+     * Reads the fields of the extension request, and may read ahead of them
+     */
+    private InputStreamHolder requestInput = new InputStreamHolder(request);
+
+    /**
+     * Response of the extension request being processed, only sent once the
+     * request has been processed completely
+     */
+    private ByteArrayOutputStream extensionResponse = new ByteArrayOutputStream();
+
+    /**
+     * Current state
+     */
+    private State state = State.Command;
+
+    /**
+     * Arguments collected for the current command
+     */
+    private int[] arguments = new int[4];
+
+    /**
+     * Number of arguments collected for the current command
+     */
+    private int argumentCount;
+
+    /**
+     * Op code of the extension request being received
+     */
+    private int extensionCommand;
+
+    /**
+     * Last command that we knew how to handle
+     */
+    private int lastGoodCommand;
+
+    /**
+     * Packet to send once the NABU acknowledges
+     */
+    private NabuPacket pendingPacket;
+
+    /**
+     * Number of commands received
+     */
+    private volatile long requests;
+
+    /**
+     * Number of bytes received
+     */
+    private volatile long bytesReceived;
+
+    /**
+     * Op code of the command being handled, -1 once it has been answered
+     */
+    private int currentCommand = -1;
+
+    /**
+     * Time spent handling the current command so far, in nanoseconds, reset
+     * once it has been recorded
+     */
+    private long commandNanos;
+
+    /**
+     * Constructor
+     * 
+     * @param NabuServer server that owns the cycle
+     * @param Settings settings
+     * @param OutputStreamHolder output where responses are written
+     */
+    public NabuProtocol(NabuServer server, Settings settings,
+            OutputStreamHolder output)
+    {
+        this.server = server;
+        this.settings = settings;
+        this.output = output;
+
+        ServerInputOutputController sioc = new ServerInputOutputController(
+                requestInput, new OutputStreamHolder(extensionResponse));
+
+        this.extensions = new ArrayList<ServerExtension>();
+        this.extensions.add(new FileStoreExtensions(sioc, settings));
+        this.extensions.add(new HeadlessExtension(server, sioc, settings));
+        this.extensions.add(new NHACPExtension(sioc, settings));
+    }
+
+    /**
+     * @return long number of commands received
+     */
+    public long getRequests()
+    {
+        return requests;
+    }
+
+    /**
+     * @return long number of bytes received
+     */
+    public long getBytesReceived()
+    {
+        return bytesReceived;
+    }
+
+    /**
+     * @return int number of sessions open in the extensions
+     */
+    public int getOpenSessions()
+    {
+        int sessions = 0;
+        for (ServerExtension extension : extensions)
+        {
+            sessions += extension.getOpenSessions();
+        }
+        return sessions;
+    }
+
+    /**
+     * @return int number of file handles open in the extensions
+     */
+    public int getOpenHandles()
+    {
+        int handles = 0;
+        for (ServerExtension extension : extensions)
+        {
+            handles += extension.getOpenHandles();
+        }
+        return handles;
+    }
+
+    /**
+     * Process bytes received from the NABU
+     * 
+     * @param byte[] data
+     * @param int offset
+     * @param int length
+     */
+    public void feed(byte[] data, int offset, int length) throws Exception
+    {
+        int index = offset;
+        int end = offset + length;
+        bytesReceived += length;
+
+        while (index < end)
+        {
+            long start = System.nanoTime();
+            if (state == State.Extension)
+            {
+                request.append(data, index, end - index);
+                index = end;
+
+                // Anything the extension did not read belongs to the next
+                // command, and can only have come from this chunk
+                int unread = this.processExtension();
+                if (unread >= 0)
+                {
+                    index = end - unread;
+                }
+            }
+            else
+            {
+                this.process(data[index++] & 0xFF);
+            }
+
+            // Time spent waiting on the NABU between bytes does not count
+            commandNanos += System.nanoTime() - start;
+            if (state == State.Command && currentCommand >= 0)
+            {
+                Metrics.recordCommand(currentCommand, commandNanos);
+                currentCommand = -1;
+                commandNanos = 0;
+            }
+        }
+    }
+
+    /**
+     * Process a single byte outside of an extension request
+     * 
+     * @param int b
+     */
+    private void process(int b) throws Exception
+    {
+        switch (state)
+        {
+        case Command:
+            if (!this.command(b))
+            {
+                // If we get an unknown command, we will try and reprocess the
+                // "last known good" command.
+                // It's a total hack, but for systems that have issues reading
+                // the input buffer, it works great!
+                this.command(lastGoodCommand);
+            }
+            else
+            {
+                lastGoodCommand = b;
+            }
+            break;
+        case Channel:
+            if (this.argument(b, 2))
+            {
+                int channel = arguments[0] + (arguments[1] << 8);
+                logger.debug("Received Channel {}", channel);
+                output.writeBytes(0xE4);
+                state = State.Command;
+            }
+            break;
+        case FileRequest:
+            if (this.argument(b, 4))
+            {
+                int packetNumber = arguments[0];
+                int segmentNumber = arguments[1] + (arguments[2] << 8)
+                        + (arguments[3] << 16);
+                this.handleFileRequest(packetNumber, segmentNumber);
+            }
+            break;
+        case GetStatus:
+            if (!settings.isAskForChannel())
+            {
+                output.writeBytes(0x1F, 0x10, 0xE1);
+            }
+            else
+            {
+                logger.debug("Asking for channel");
+                output.writeBytes(0xFF, 0x10, 0xE1);
+            }
+            state = State.Command;
+            break;
+        case SetStatus:
+            if (this.argument(b, 2))
+            {
+                output.writeBytes(0xE4);
+                state = State.Command;
+            }
+            break;
+        case PacketAck:
+            if (b != 0x10)
+            {
+                output.writeBytes(0x10, 0x6, 0xE4);
+                state = State.Command;
+            }
+            else
+            {
+                state = State.PacketAckEnd;
+            }
+            break;
+        case PacketAckEnd:
+            this.expect(b, 0x6);
+            // Escaped, with the end of packet marker, in a single write
+            output.writeBytes(pendingPacket.getWireData());
+            pendingPacket = null;
+            state = State.Command;
+            break;
+        case UnauthorizedAck:
+            this.expect(b, 0x10);
+            state = State.UnauthorizedAckEnd;
+            break;
+        case UnauthorizedAckEnd:
+            this.expect(b, 0x6);
+            state = State.Command;
+            break;
+        case Extension:
+            // Extension bytes are handled in feed
+            break;
+        }
+    }
+
+    /**
+     * Start processing a command
+     * 
+     * @param int b the op code
+     * @return false if the command is not known
+     */
+    private boolean command(int b) throws Exception
+    {
+        argumentCount = 0;
+        requests++;
+        currentCommand = b;
+
+        switch (b)
+        {
+        case 0x85: // Channel
+            output.writeBytes(0x10, 0x6);
+            state = State.Channel;
+            break;
+        case 0x84: // File Transfer
+            output.writeBytes(0x10, 0x6);
+            state = State.FileRequest;
+            break;
+        case 0x83:
+            output.writeBytes(0x10, 0x6, 0xE4);
+            break;
+        case 0x82:
+            output.writeBytes(0x10, 0x6);
+            state = State.GetStatus;
+            break;
+        case 0x81:
+            output.writeBytes(0x10, 0x6);
+            state = State.SetStatus;
+            break;
+        case 0x1E:
+            output.writeBytes(0x10, 0xE1);
+            break;
+        case 0x5:
+            output.writeBytes(0xE4);
+            break;
+        case 0xF:
+            break;
+        default:
+            extensionCommand = b;
+            request.clear();
+            requestInput.discard();
+            state = State.Extension;
+
+            // Some requests are complete with the op code alone
+            if (this.processExtension() == -2)
+            {
+                state = State.Command;
+                logger.error("Unknown command 0x" + String.format("%02x", b));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collect an argument for the current command
+     * 
+     * @param int b argument byte
+     * @param int count number of arguments the command needs
+     * @return true once all of the arguments have been collected
+     */
+    private boolean argument(int b, int count)
+    {
+        arguments[argumentCount++] = b;
+        return argumentCount == count;
+    }
+
+    /**
+     * Throw if the byte is not what we expect
+     * 
+     * @param int b the byte read
+     * @param int expectedByte the byte we expect
+     */
+    private void expect(int b, int expectedByte) throws Exception
+    {
+        if (b != expectedByte)
+        {
+            throw new Exception("Read " + String.format("%02x", b)
+                    + " but expected " + String.format("%02x", expectedByte));
+        }
+    }
+
+    /**
+     * Run the extension request against the bytes received so far
+     * 
+     * @return number of bytes the extension did not read once the request is
+     *         complete, -1 if more bytes are needed, -2 if no extension
+     *         handles the op code
+     */
+    private int processExtension() throws Exception
+    {
+        request.rewind();
+        requestInput.discard();
+        extensionResponse.reset();
+
+        try
+        {
+            for (ServerExtension extension : this.extensions)
+            {
+                if (extension.tryProcessCommand(extensionCommand))
+                {
+                    output.writeBytes(extensionResponse.toByteArray());
+                    int unread = requestInput.available();
+                    request.clear();
+                    requestInput.discard();
+                    state = State.Command;
+                    return unread;
+                }
+            }
+        }
+        catch (IncompleteRequestException ex)
+        {
+            // Try again once more of the request arrives
+            return -1;
+        }
+
+        return -2;
+    }
+
+    /**
+     * Handle the Nabu's file request
+     * 
+     * @param int packetNumber
+     * @param int segmentNumber
+     */
+    private void handleFileRequest(int packetNumber, int segmentNumber)
+            throws Exception
+    {
+        logger.debug("NABU requesting segment {} and packet {}",
+                String.format("%06x", segmentNumber),
+                String.format("%06x", packetNumber));
+
+        // ok
+        output.writeBytes(0xE4);
+        state = State.Command;
+
+        if (segmentNumber == 0x1 && packetNumber == 0x0)
+        {
+            extensions.forEach(ServerExtension::reset);
+        }
+
+        Optional<NabuSegment> segment = server.getSegment(segmentNumber,
+                packetNumber);
+
+        if (!segment.isPresent())
+        {
+            if (segmentNumber == 1)
+            {
+                // NABU can't do anything without an initial pack - throw and
+                // be done.
+                throw new Exception("Initial NABU file of "
+                        + String.format("%06x", segmentNumber).toUpperCase()
+                        + " was not found, fix this");
+            }
+
+            // File not found, write unauthorized
+            output.writeBytes(0x90);
+            state = State.UnauthorizedAck;
+        }
+        else
+        {
+            // Ask for the packet itself rather than the packet count, which
+            // isn't known until a streaming segment has fully arrived
+            try
+            {
+                pendingPacket = segment.get().getPackets().get(packetNumber);
+            }
+            catch (IndexOutOfBoundsException ex)
+            {
+                logger.warn("Segment {} has no packet {}",
+                        String.format("%06x", segmentNumber), packetNumber);
+                return;
+            }
+            catch (IllegalStateException ex)
+            {
+                // Stopped arriving partway, answer as if it was not found
+                logger.warn("Segment {} failed to load: {}",
+                        String.format("%06x", segmentNumber),
+                        String.valueOf(ex.getCause()));
+                server.segmentFailed(segmentNumber);
+                output.writeBytes(0x90);
+                state = State.UnauthorizedAck;
+                return;
+            }
+
+            // Send the requested segment of the pack once the NABU is ready
+            output.writeBytes(0x91);
+            state = State.PacketAck;
+        }
+    }
+}
@@ -1,23 +1,33 @@
 package com.lenderman.nabu.adapter.server;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import com.lenderman.nabu.adapter.connection.Connection;
+import com.lenderman.nabu.adapter.connection.ConnectionListener;
+import com.lenderman.nabu.adapter.connection.NioConnection;
+import com.lenderman.nabu.adapter.connection.NioListener;
 import com.lenderman.nabu.adapter.connection.SerialConnection;
 import com.lenderman.nabu.adapter.connection.TcpConnection;
-import com.lenderman.nabu.adapter.extensions.FileStoreExtensions;
-import com.lenderman.nabu.adapter.extensions.HeadlessExtension;
-import com.lenderman.nabu.adapter.extensions.NHACPExtension;
-import com.lenderman.nabu.adapter.extensions.ServerExtension;
+import com.lenderman.nabu.adapter.connection.TcpListener;
+import com.lenderman.nabu.adapter.loader.LoadScheduler;
 import com.lenderman.nabu.adapter.loader.Loader;
 import com.lenderman.nabu.adapter.loader.LocalLoader;
 import com.lenderman.nabu.adapter.loader.WebLoader;
+import com.lenderman.nabu.adapter.loader.ZipLoader;
+import com.lenderman.nabu.adapter.metrics.Metrics;
+import com.lenderman.nabu.adapter.metrics.MetricsHttpServer;
 import com.lenderman.nabu.adapter.model.packet.NabuSegment;
 import com.lenderman.nabu.adapter.model.settings.Settings;
+import com.lenderman.nabu.adapter.stream.OutputStreamHolder;
+import com.lenderman.nabu.adapter.stream.TrafficRecorder;
 
 /**
  * Main implementation of the Nabu server, sits and waits for the nabu to
@@ -36,17 +46,24 @@ public class NabuServer
     private Settings settings;
 
     /**
-     * Cache of loaded segments
+     * Loads segments into the cache of loaded segments
      * 
      * If you don't cache this, you'll be loading in the file and parsing
-     * everything for every individual packet.
+     * everything for every individual packet. In multi-client mode this is
+     * shared by every connected NABU.
      */
-    private ConcurrentHashMap<Integer, NabuSegment> cache = new ConcurrentHashMap<Integer, NabuSegment>();
+    private SegmentLoader segmentLoader;
 
     /**
-     * Modules to handle non-standard NABU op-codes.
+     * Loads the segments that usually come next ahead of time, null if
+     * prefetching is off. Shared by every connected NABU.
      */
-    private List<ServerExtension> extensions;
+    private SegmentPrefetcher prefetcher;
+
+    /**
+     * Last segment the NABU asked for, -1 if none since it booted
+     */
+    private int lastSegment = -1;
 
     /**
      * Cycle Count.
@@ -58,25 +75,134 @@ public class NabuServer
      */
     private ServerInputOutputController sioc;
 
+    /**
+     * NABU protocol state for the current connection
+     */
+    private NabuProtocol protocol;
+
+    /**
+     * Deadlines, retries and hedging of web loads
+     */
+    private LoadScheduler loadScheduler;
+
     /**
      * The data loader
      */
     private Loader loader;
 
+    /**
+     * Connection already accepted for this client, null if this server owns
+     * its connection
+     */
+    private Connection clientConnection;
+
+    /**
+     * Number the metrics know the current connection by, 0 if there is none
+     */
+    private int connectionId;
+
+    /**
+     * Recorder of NABU traffic, null if it is not recorded
+     */
+    private TrafficRecorder recorder;
+
     /**
      * Constructor
      */
     public NabuServer(Settings settings)
     {
         this.settings = settings;
+        this.segmentLoader = new SegmentLoader(
+                new SegmentCache(settings.getCacheSize() * 1024L * 1024L,
+                        settings.getRefresh() * 1000L,
+                        settings.getMaxStale() * 1000L),
+                new SegmentResolver(settings.getMissTtl() * 1000L));
+        this.loadScheduler = new LoadScheduler(settings.getWebTimeout() * 1000L,
+                settings.getWebRetries(), 250, settings.getHedge());
+        this.loader = createLoader(settings.getPath());
+
+        Metrics.start(segmentLoader.getCache());
+        if (settings.getMetricsPort() > 0)
+        {
+            try
+            {
+                new MetricsHttpServer(settings.getMetricsPort()).start();
+            }
+            catch (IOException ex)
+            {
+                logger.error("Could not serve metrics on port "
+                        + settings.getMetricsPort(), ex);
+            }
+        }
+
+        if (settings.getRecordPath() != null)
+        {
+            try
+            {
+                TrafficRecorder recorder = new TrafficRecorder(
+                        settings.getRecordPath(),
+                        settings.getRecordSize() * 1024L * 1024L);
+                recorder.start();
+                this.recorder = recorder;
+            }
+            catch (IOException ex)
+            {
+                logger.error("Could not record NABU traffic to "
+                        + settings.getRecordPath(), ex);
+            }
+        }
+
+        if (settings.isPrefetch())
+        {
+            this.prefetcher = new SegmentPrefetcher(segmentLoader, Paths.get(
+                    System.getProperty("user.dir"), Settings.PrefetchModelFile));
+            this.prefetcher.start();
+        }
+    }
+
+    /**
+     * Constructor for a single client of a multi-client server
+     * 
+     * @param Settings settings for this client
+     * @param NabuServer parent server that accepted the client
+     * @param Connection accepted client connection
+     */
+    private NabuServer(Settings settings, NabuServer parent,
+            Connection clientConnection)
+    {
+        this.settings = settings;
+        this.segmentLoader = parent.segmentLoader;
+        this.prefetcher = parent.prefetcher;
+        this.loadScheduler = parent.loadScheduler;
+        this.recorder = parent.recorder;
+        this.clientConnection = clientConnection;
+        this.loader = createLoader(settings.getPath());
+    }
+
+    /**
+     * Create the loader for the specified path
+     * 
+     * @param String path
+     * @return Loader
+     */
+    private Loader createLoader(String path)
+    {
+        // A .zip archive holds the whole cycle, wherever it is
+        if (path.toLowerCase().endsWith(".zip"))
+        {
+            return new ZipLoader(path, path.toLowerCase().startsWith("http")
+                    ? new WebLoader(loadScheduler)
+                    : null);
+        }
+
         // If the path starts with http, go cloud - otherwise local
-        if (settings.getPath().toLowerCase().startsWith("http"))
+        if (path.toLowerCase().startsWith("http"))
         {
-            loader = new WebLoader();
+            return new WebLoader(loadScheduler);
         }
         else
         {
-            loader = new LocalLoader();
+            return new LocalLoader();
         }
     }
 
@@ -86,24 +212,24 @@ public class NabuServer
     private void startServer() throws Exception
     {
         logger.debug("Begin startServer");
-        Connection connection = null;
+        Connection connection = clientConnection;
 
-        switch (this.settings.getOperatingMode())
+        if (connection == null)
         {
-        case Serial:
-            connection = new SerialConnection(this.settings);
-            break;
-        case TCPIP:
-            connection = new TcpConnection(this.settings);
-            break;
+            switch (this.settings.getOperatingMode())
+            {
+            case Serial:
+                connection = new SerialConnection(this.settings);
+                break;
+            case TCPIP:
+                connection = new TcpConnection(this.settings);
+                break;
+            }
         }
 
-        sioc = new ServerInputOutputController(connection);
-
-        this.extensions = new ArrayList<ServerExtension>();
-        this.extensions.add(new FileStoreExtensions(sioc, settings));
-        this.extensions.add(new HeadlessExtension(this, sioc, settings));
-        this.extensions.add(new NHACPExtension(sioc, settings));
+        sioc = new ServerInputOutputController(connection, recorder);
+        protocol = new NabuProtocol(this, settings, sioc.getOs());
+        this.openMetrics();
     }
 
     /**
@@ -116,6 +242,23 @@ public class NabuServer
             logger.debug("Stopping server if running");
             sioc.closeServerConnections();
         }
+        if (connectionId != 0)
+        {
+            Metrics.closeConnection(connectionId);
+            connectionId = 0;
+        }
+    }
+
+    /**
+     * Have the metrics follow the current connection
+     */
+    private void openMetrics()
+    {
+        NabuProtocol protocol = this.protocol;
+        OutputStreamHolder output = sioc.getOs();
+        connectionId = Metrics.openConnection(protocol::getBytesReceived,
+                output::getBytesSent, protocol::getOpenSessions,
+                protocol::getOpenHandles);
     }
 
     /**
@@ -123,6 +266,28 @@ public class NabuServer
      */
     public void runServer()
     {
+        if (settings.isWarmup() && clientConnection == null)
+        {
+            // Serve NABUs right away, whatever is not warm yet loads on demand
+            CycleWarmer warmer = new CycleWarmer(segmentLoader,
+                    settings.getWarmupThreads());
+            Thread thread = new Thread(() -> warmer.warmUp(loader,
+                    settings.getPath(), settings.getPreservedPath()),
+                    "Cycle warm up");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        if (settings.isMultiClient() && clientConnection == null)
+        {
+            if (settings.getOperatingMode() == Settings.OperatingMode.TCPIP)
+            {
+                this.runMultiClientServer();
+                return;
+            }
+            logger.warn("Multi-client mode is only available for TCPIP");
+        }
+
         logger.info("Listening for NABU");
 
         // Start the server first, but if we hit an exception, terminate
@@ -136,7 +301,7 @@ public class NabuServer
             return;
         }
 
-        int lastGoodCommand = 0;
+        byte[] buffer = new byte[1024];
         while (true)
         {
             try
@@ -145,18 +310,30 @@ public class NabuServer
                 {
                     throw new Exception("Connection Lost");
                 }
-                int b = sioc.getIs().readByte();
-                if (!processSwitch(b))
+                int count = sioc.getIs().readAvailable(buffer);
+                if (count == -1)
                 {
-                    processSwitch(lastGoodCommand);
-                }
-                else
-                {
-                    lastGoodCommand = b;
+                    // Well, we are reading garbage, socket has probably
+                    // closed, quit this loop
+                    throw new Exception("Socket disconnected");
                 }
+                protocol.feed(buffer, 0, count);
+
+                // Everything is answered, send it before waiting on the NABU
+                sioc.getOs().flush();
             }
             catch (Exception ex)
             {
+                this.logFlushes();
+                if (clientConnection != null)
+                {
+                    // Nothing to restart, the NABU has to connect again
+                    logger.info("NABU client disconnected: {}",
+                            ex.getMessage());
+                    this.stopServer();
+                    return;
+                }
+
                 logger.error("Exception in server runloop", ex);
                 this.stopServer();
                 try
@@ -174,113 +351,168 @@ public class NabuServer
     }
 
     /**
-     * Process the switch statement
+     * Keep one listener open and serve every NABU that connects to it on its
+     * own thread, with its own extensions and protocol state. Loaded segments
+     * are shared between all of them.
      */
-    private boolean processSwitch(int b) throws Exception
+    private void runMultiClientServer()
     {
-        switch (b)
+        logger.info("Listening for NABU clients");
+
+        ConnectionListener listener;
+        if (settings.isNio())
+        {
+            listener = new NioListener(this.settings);
+        }
+        else
+        {
+            listener = new TcpListener(this.settings);
+        }
+
+        try
+        {
+            listener.start();
+        }
+        catch (Exception ex)
+        {
+            logger.error("Exception starting server", ex);
+            return;
+        }
+
+        ExecutorService clients = Executors.newCachedThreadPool();
+        while (listener.isListening())
         {
-        case 0x85: // Channel
-            sioc.getOs().writeBytes(0x10, 0x6);
-            int channel = sioc.getIs().readByte()
-                    + (sioc.getIs().readByte() << 8);
-            logger.debug("Received Channel {}", channel);
-            sioc.getOs().writeBytes(0xE4);
-            break;
-        case 0x84: // File Transfer
-            this.handleFileRequest();
-            break;
-        case 0x83:
-            sioc.getOs().writeBytes(0x10, 0x6, 0xE4);
-            break;
-        case 0x82:
-            this.configureChannel(this.settings.isAskForChannel());
-            break;
-        case 0x81:
-            sioc.getOs().writeBytes(0x10, 0x6);
-            sioc.getIs().readByte();
-            sioc.getIs().readByte();
-            sioc.getOs().writeBytes(0xE4);
-            break;
-        case 0x1E:
-            sioc.getOs().writeBytes(0x10, 0xE1);
-            break;
-        case 0x5:
-            sioc.getOs().writeBytes(0xE4);
-            break;
-        case 0xF:
-            break;
-        case -1:
-            // Well, we are reading garbage, socket has probably closed,
-            // quit this loop
-            throw new Exception("Socket disconnected");
-        default:
-            boolean completed = false;
-
-            for (ServerExtension extension : this.extensions)
+            try
             {
-                if (extension.tryProcessCommand(b))
+                Connection connection = listener.accept();
+                logger.info("NABU client connected");
+                NabuServer client = new NabuServer(new Settings(settings),
+                        this, connection);
+                if (connection instanceof NioConnection)
+                {
+                    // No thread is tied up while the NABU is quiet
+                    client.runPushedServer((NioConnection) connection, clients);
+                }
+                else
                 {
-                    completed = true;
-                    break;
+                    clients.execute(client::runServer);
                 }
             }
-
-            if (!completed)
+            catch (Exception ex)
             {
-                // If we get an unknown command, we'll return false here.
-                // As a result, we will try and reprocess the "last known good"
-                // command.
-                // It's a total hack, but for systems that have issues reading
-                // the
-                // input buffer, it works great!
-                logger.error("Unknown command 0x" + String.format("%02x", b));
-                return false;
+                logger.error("Exception accepting NABU client", ex);
             }
         }
-        return true;
+        clients.shutdown();
     }
 
     /**
-     * Handle the Nabu's file request
+     * Serve a NABU whose bytes are pushed to us by the event loop. The bytes
+     * are fed to the protocol on the worker pool, one batch at a time and in
+     * the order they arrived.
+     * 
+     * @param NioConnection connection accepted client connection
+     * @param ExecutorService workers pool to run the protocol on
      */
-    private void handleFileRequest() throws Exception
+    private void runPushedServer(NioConnection connection,
+            ExecutorService workers) throws Exception
     {
-        sioc.getOs().writeBytes(0x10, 0x6);
-
-        // Ok, get the requested packet and segment info
-        int packetNumber = sioc.getRequestedPacket();
-        int segmentNumber = sioc.getRequestedSegment();
+        sioc = new ServerInputOutputController(connection, recorder);
+        protocol = new NabuProtocol(this, settings, sioc.getOs());
+        this.openMetrics();
 
-        String segmentName = String.format("%06x", segmentNumber).toUpperCase();
-        logger.debug("NABU requesting segment {} and packet {}",
-                String.format("%06x", segmentNumber),
-                String.format("%06x", packetNumber));
+        Queue<byte[]> pending = new ConcurrentLinkedQueue<byte[]>();
+        AtomicBoolean draining = new AtomicBoolean();
 
-        // ok
-        sioc.getOs().writeBytes(0xE4);
-        Optional<NabuSegment> segment;
-
-        if (segmentNumber == 0x1 && packetNumber == 0x0)
+        Runnable drain = new Runnable()
         {
-            extensions.forEach(ServerExtension::reset);
-
-            if (settings
-                    .getSourceLocation() == Settings.SourceLocation.Headless)
+            @Override
+            public void run()
             {
-                // We are headless, and a cycle, need two loads of segment &
-                // packet in a row to reset
-                this.cycleCount++;
-                if (this.cycleCount > 1)
+                try
                 {
-                    this.resetHeadless();
+                    byte[] data;
+                    while ((data = pending.poll()) != null)
+                    {
+                        sioc.received(data, 0, data.length);
+                        protocol.feed(data, 0, data.length);
+                    }
+
+                    // Everything is answered, send it before waiting on the
+                    // NABU
+                    sioc.getOs().flush();
+                }
+                catch (Exception ex)
+                {
+                    logger.info("NABU client disconnected: {}",
+                            ex.getMessage());
+                    pending.clear();
+                    stopServer();
+                }
+                finally
+                {
+                    draining.set(false);
+                }
+
+                // Bytes may have shown up after the last poll
+                if (!pending.isEmpty() && draining.compareAndSet(false, true))
+                {
+                    workers.execute(this);
                 }
             }
+        };
 
-            if (settings
-                    .getSourceLocation() == Settings.SourceLocation.LocalDirectory)
+        connection.setReceiver(data -> {
+            pending.add(data);
+            if (draining.compareAndSet(false, true))
             {
-                cache.clear();
+                workers.execute(drain);
+            }
+        }, () -> {
+            this.logFlushes();
+            logger.info("NABU client disconnected");
+            this.stopServer();
+        });
+    }
+
+    /**
+     * Log how many flushes it took to answer the NABU's requests
+     */
+    private void logFlushes()
+    {
+        if (sioc != null && protocol != null)
+        {
+            logger.debug("Answered {} requests with {} writes in {} flushes",
+                    protocol.getRequests(), sioc.getOs().getWrites(),
+                    sioc.getOs().getFlushes());
+        }
+    }
+
+    /**
+     * Find the requested segment, loading it if it is not cached yet
+     * 
+     * @param int segmentNumber
+     * @param int packetNumber
+     * @return Optional<NabuSegment>
+     */
+    Optional<NabuSegment> getSegment(int segmentNumber, int packetNumber)
+            throws Exception
+    {
+        if (segmentNumber == 0x1 && packetNumber == 0x0)
+        {
+            // A boot, not a move from whatever was asked for before
+            lastSegment = -1;
+        }
+
+        if (segmentNumber == 0x1 && packetNumber == 0x0 && settings
+                .getSourceLocation() == Settings.SourceLocation.Headless)
+        {
+            // We are headless, and a cycle, need two loads of segment &
+            // packet in a row to reset
+            this.cycleCount++;
+            if (this.cycleCount > 1)
+            {
+                this.resetHeadless();
             }
         }
 
@@ -293,200 +525,80 @@ public class NabuServer
 
         if (segmentNumber == 0x7FFFFF)
         {
-            segment = Optional.of(SegmentManager.createTimeSegment());
+            return Optional.of(SegmentManager.createTimeSegment());
         }
-        else
+
+        Optional<NabuSegment> segment;
+        try
+        {
+            segment = segmentLoader.getSegment(loader, settings.getPath(),
+                    settings.getPreservedPath(), segmentNumber);
+        }
+        catch (Exception ex)
         {
+            // Nothing is remembered, so the next request tries again
+            logger.warn("Could not load segment {}: {}",
+                    String.format("%06x", segmentNumber), ex.toString());
+            segment = Optional.empty();
+        }
 
-            if (cache.containsKey(segmentNumber))
-            {
-                segment = Optional.of(cache.get(segmentNumber));
-            }
-            else
-            {
-                segment = Optional.empty();
-            }
+        if (!segment.isPresent() && settings
+                .getSourceLocation() == Settings.SourceLocation.Headless)
+        {
+            logger.warn(
+                    "Could not load requested headless target, reloading menu");
 
-            if (!segment.isPresent())
+            loader = new LocalLoader();
+            Optional<byte[]> data = loader.tryGetData(
+                    Settings.HeadlessBootLoader,
+                    this.settings.getPreservedPath());
+            if (data.isPresent())
             {
-                Optional<byte[]> data;
-                // if the path ends with .nabu:
-                if (this.settings.getPath().toLowerCase().endsWith(".nabu")
-                        && segmentNumber == 1)
-                {
-                    data = loader.tryGetData(this.settings.getPath(),
-                            this.settings.getPreservedPath());
-                    if (data.isPresent())
-                    {
-                        logger.debug("Loading NABU segment {} from {}",
-                                String.format("%06x", segmentNumber),
-                                this.settings.getPath());
-                        segment = Optional.of(SegmentManager
-                                .createPackets(segmentNumber, data.get()));
-                    }
-                }
-                else if (this.settings.getPath().toLowerCase().endsWith(".pak")
-                        && segmentNumber == 1)
-                {
-                    data = loader.tryGetData(this.settings.getPath(),
-                            this.settings.getPreservedPath());
-                    if (data.isPresent())
-                    {
-                        logger.debug("Creating NABU segment {} from {}",
-                                String.format("%06x", segmentNumber),
-                                this.settings.getPath());
-                        segment = Optional.of(SegmentManager
-                                .loadPackets(segmentNumber, data.get()));
-                    }
-                }
-                else
-                {
-                    Optional<String> directory = loader
-                            .tryGetDirectory(this.settings.getPath());
-
-                    if (directory.isPresent())
-                    {
-                        String segmentFullPath = directory.get()
-                                + loader.getPathSeparator() + segmentName
-                                + ".nabu";
-                        data = loader.tryGetData(segmentFullPath,
-                                this.settings.getPreservedPath());
-                        if (!data.isPresent())
-                        {
-                            segmentFullPath = directory.get()
-                                    + loader.getPathSeparator() + segmentName
-                                    + ".NABU";
-                            data = loader.tryGetData(segmentFullPath,
-                                    this.settings.getPreservedPath());
-                        }
-                        if (data.isPresent())
-                        {
-                            logger.debug("Creating NABU segment {} from {}",
-                                    String.format("%06x", segmentNumber),
-                                    segmentFullPath);
-                            segment = Optional.of(SegmentManager
-                                    .createPackets(segmentNumber, data.get()));
-                        }
-                        else
-                        {
-                            String pakFullPath = directory.get()
-                                    + loader.getPathSeparator() + segmentName
-                                    + ".pak";
-                            data = loader.tryGetData(pakFullPath,
-                                    this.settings.getPreservedPath());
-                            if (!data.isPresent())
-                            {
-                                pakFullPath = directory.get()
-                                        + loader.getPathSeparator()
-                                        + segmentName + ".PAK";
-                                data = loader.tryGetData(pakFullPath,
-                                        this.settings.getPreservedPath());
-                            }
-                            if (data.isPresent())
-                            {
-                                logger.debug("Loading NABU segment {} from {}",
-                                        String.format("%06x", segmentNumber),
-                                        pakFullPath);
-                                segment = Optional
-                                        .of(SegmentManager.loadPackets(
-                                                segmentNumber, data.get()));
-                            }
-                        }
-                    }
-                }
-
-                if (!segment.isPresent())
-                {
-                    if (settings
-                            .getSourceLocation() == Settings.SourceLocation.Headless)
-                    {
-                        logger.warn(
-                                "Could not load requested headless target, reloading menu");
-
-                        loader = new LocalLoader();
-                        data = loader.tryGetData(Settings.HeadlessBootLoader,
-                                this.settings.getPreservedPath());
-                        if (data.isPresent())
-                        {
-                            segment = Optional.of(SegmentManager
-                                    .createPackets(segmentNumber, data.get()));
-                        }
-
-                        cache.put(segmentNumber, segment.get());
-                    }
-                    else
-                    {
-                        if (segmentNumber == 1)
-                        {
-                            // NABU can't do anything without an initial pack -
-                            // throw and be done.
-                            throw new Exception("Initial NABU file of "
-                                    + segmentName + " was not found, fix this");
-                        }
-
-                        // File not found, write unauthorized
-                        sioc.getOs().writeBytes(0x90);
-                        sioc.getIs().readByte(0x10);
-                        sioc.getIs().readByte(0x6);
-                    }
-                }
-                else
-                {
-                    cache.put(segmentNumber, segment.get());
-                }
+                // Not cached, the cache would hand the menu to anyone asking
+                // for the target, even once the target can be loaded
+                segment = Optional.of(
+                        SegmentManager.createPackets(segmentNumber, data.get()));
             }
         }
 
-        // Send the requested segment of the pack
-        if (segment.isPresent()
-                && packetNumber <= segment.get().getPackets().size())
+        if (segment.isPresent() && segmentNumber != lastSegment)
         {
-            sioc.getOs().writeBytes(0x91);
-            int b = sioc.getIs().readByte();
-            if (b != 0x10)
+            // The NABU moved on to another segment, get ahead of it
+            if (prefetcher != null)
             {
-                sioc.getOs().writeBytes(0x10, 0x6, 0xE4);
-                return;
+                prefetcher.onSegment(loader, settings.getPath(),
+                        settings.getPreservedPath(), lastSegment,
+                        segmentNumber);
             }
-
-            sioc.getIs().readByte(0x6);
-            sioc.sendPacket(segment.get().getPackets().get(packetNumber));
-            sioc.getOs().writeBytes(0x10, 0xE1);
+            lastSegment = segmentNumber;
         }
+
+        return segment;
     }
 
     /**
-     * Reset the server cycle
+     * Forget a segment that failed to load partway, so the next request for
+     * it loads it again
+     * 
+     * @param int segmentNumber
      */
-    public void resetCycle(String path)
+    void segmentFailed(int segmentNumber)
     {
-        // reset the cache
-        this.cache.clear();
-        this.cycleCount = 0;
-
-        // set the path
-        settings.setPath(path);
+        segmentLoader.dropFailed(settings.getPath(), segmentNumber);
     }
 
     /**
-     * Tell the NABU to present the channel prompt
-     * 
-     * @param boolean askForChannel
+     * Reset the server cycle
      */
-    private void configureChannel(boolean askForChannel) throws Exception
+    public void resetCycle(String path)
     {
-        sioc.getOs().writeBytes(0x10, 0x6);
-        sioc.getIs().readByte();
+        // The cache is keyed by cycle path, so there is nothing to throw away
+        this.cycleCount = 0;
+        this.lastSegment = -1;
 
-        if (!askForChannel)
-        {
-            sioc.getOs().writeBytes(0x1F, 0x10, 0xE1);
-        }
-        else
-        {
-            logger.debug("Asking for channel");
-            sioc.getOs().writeBytes(0xFF, 0x10, 0xE1);
-        }
+        // set the path, and pick the loader that can reach it
+        settings.setPath(path);
+        this.loader = createLoader(path);
     }
 
     /**
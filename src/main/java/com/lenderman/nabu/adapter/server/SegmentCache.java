@@ -0,0 +1,600 @@
+package com.lenderman.nabu.adapter.server;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.lenderman.nabu.adapter.model.packet.NabuSegment;
+
+/**
+ * Cache of loaded segments shared by every NABU the process serves. Segments
+ * are keyed by the cycle path they came from and their segment number, so
+ * switching cycles never throws away segments another client still needs.
+ * Once the cached segment data outgrows the memory budget, the least recently
+ * used segments are evicted. Segments loaded from local files are dropped as
+ * soon as their file changes on disk. Other segments go stale after a while,
+ * and are still served while a fresh copy is loaded in the background, until
+ * they are too stale to serve at all.
+ */
+public class SegmentCache
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager
+            .getLogger(SegmentCache.class);
+
+    /**
+     * Milliseconds between checks of the file a segment was loaded from. The
+     * NABU asks for a segment once per packet, and a check costs two trips
+     * to the disk.
+     */
+    private static final long SourceCheckMillis = 1000;
+
+    /**
+     * Cached segments in least to most recently used order
+     */
+    private LinkedHashMap<Key, Entry> segments = new LinkedHashMap<Key, Entry>(
+            16, 0.75f, true);
+
+    /**
+     * Maximum number of bytes of segment data to hold
+     */
+    private long capacity;
+
+    /**
+     * Milliseconds a segment not loaded from a file is fresh for, 0 to keep it
+     * fresh until it is evicted
+     */
+    private long freshMillis;
+
+    /**
+     * Milliseconds past fresh that a stale segment is still served for while
+     * it is refreshed
+     */
+    private long maxStaleMillis;
+
+    /**
+     * Bytes of segment data held
+     */
+    private long size;
+
+    /**
+     * Number of lookups that found their segment
+     */
+    private long hits;
+
+    /**
+     * Number of lookups that did not find their segment
+     */
+    private long misses;
+
+    /**
+     * Number of segments evicted to stay within the memory budget
+     */
+    private long evictions;
+
+    /**
+     * Number of segments dropped because their file changed
+     */
+    private long invalidations;
+
+    /**
+     * Number of lookups that were served a stale segment
+     */
+    private long staleHits;
+
+    /**
+     * Number of refreshed segments that came back changed
+     */
+    private long refreshes;
+
+    /**
+     * Number of segments dropped because they were too stale to serve
+     */
+    private long expirations;
+
+    /**
+     * Constructor for a cache whose segments never go stale
+     * 
+     * @param long capacity maximum number of bytes of segment data to hold
+     */
+    public SegmentCache(long capacity)
+    {
+        this(capacity, 0, 0);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param long capacity maximum number of bytes of segment data to hold
+     * @param long freshMillis milliseconds a segment not loaded from a file is
+     *        fresh for, 0 to keep it fresh until it is evicted
+     * @param long maxStaleMillis milliseconds past fresh that a stale segment
+     *        is still served for while it is refreshed
+     */
+    public SegmentCache(long capacity, long freshMillis, long maxStaleMillis)
+    {
+        this.capacity = capacity;
+        this.freshMillis = freshMillis;
+        this.maxStaleMillis = maxStaleMillis;
+    }
+
+    /**
+     * Get a cached segment
+     * 
+     * @param String path cycle path the segment came from
+     * @param int segmentNumber
+     * @return Optional<NabuSegment>
+     */
+    public Optional<NabuSegment> get(String path, int segmentNumber)
+    {
+        return this.get(path, segmentNumber, null);
+    }
+
+    /**
+     * Get a cached segment. A stale segment is returned as it is, and the
+     * first lookup to find it stale starts its refresh.
+     * 
+     * @param String path cycle path the segment came from
+     * @param int segmentNumber
+     * @param Runnable refresh starts loading a fresh copy of the segment, or
+     *        null
+     * @return Optional<NabuSegment>
+     */
+    public Optional<NabuSegment> get(String path, int segmentNumber,
+            Runnable refresh)
+    {
+        Key key = new Key(path, segmentNumber);
+        Entry entry;
+        synchronized (this)
+        {
+            entry = segments.get(key);
+        }
+
+        // Check the file outside of the lock, it means a trip to the disk
+        long now = System.currentTimeMillis();
+        if (entry != null && entry.source.isPresent()
+                && now - entry.checked >= SourceCheckMillis
+                && !this.checkSource(entry, now))
+        {
+            logger.debug("Segment {} changed on disk, reloading",
+                    String.format("%06x", segmentNumber));
+            synchronized (this)
+            {
+                if (segments.remove(key, entry))
+                {
+                    size -= entry.weight;
+                    invalidations++;
+                }
+            }
+            entry = null;
+        }
+
+        boolean refreshing = false;
+        synchronized (this)
+        {
+            long age = now - (entry == null ? 0 : entry.loaded);
+            if (entry != null && freshMillis > 0 && !entry.source.isPresent()
+                    && age > freshMillis + maxStaleMillis)
+            {
+                logger.debug("Segment {} is too stale to serve, reloading",
+                        String.format("%06x", segmentNumber));
+                if (segments.remove(key, entry))
+                {
+                    size -= entry.weight;
+                    expirations++;
+                }
+                entry = null;
+            }
+
+            if (entry == null)
+            {
+                misses++;
+                return Optional.empty();
+            }
+            hits++;
+
+            if (freshMillis > 0 && !entry.source.isPresent()
+                    && age > freshMillis)
+            {
+                staleHits++;
+                if (refresh != null && !entry.refreshing)
+                {
+                    entry.refreshing = true;
+                    refreshing = true;
+                }
+            }
+        }
+
+        // Start the refresh outside of the lock, the loader may take a while
+        if (refreshing)
+        {
+            logger.debug("Segment {} is stale, refreshing",
+                    String.format("%06x", segmentNumber));
+            refresh.run();
+        }
+        return Optional.of(entry.segment);
+    }
+
+    /**
+     * Check that the file a segment was loaded from has not changed
+     * 
+     * @param Entry entry
+     * @param long now
+     * @return boolean
+     */
+    private boolean checkSource(Entry entry, long now)
+    {
+        if (!entry.source.get().isCurrent())
+        {
+            return false;
+        }
+        entry.checked = now;
+        return true;
+    }
+
+    /**
+     * Let a stale segment be refreshed again after its refresh failed
+     * 
+     * @param String path cycle path the segment came from
+     * @param int segmentNumber
+     */
+    public synchronized void refreshFailed(String path, int segmentNumber)
+    {
+        Entry entry = segments.get(new Key(path, segmentNumber));
+        if (entry != null)
+        {
+            entry.refreshing = false;
+        }
+    }
+
+    /**
+     * Check whether a segment is cached, without counting it as a lookup or
+     * making it more recently used
+     * 
+     * @param String path cycle path the segment came from
+     * @param int segmentNumber
+     * @return boolean
+     */
+    public synchronized boolean contains(String path, int segmentNumber)
+    {
+        return segments.containsKey(new Key(path, segmentNumber));
+    }
+
+    /**
+     * Cache a segment, evicting the least recently used segments if needed
+     * 
+     * @param String path cycle path the segment came from
+     * @param NabuSegment segment
+     */
+    public void put(String path, NabuSegment segment)
+    {
+        this.put(path, segment, Optional.empty(), null);
+    }
+
+    /**
+     * Keep a cached segment that was built from the same data as a fresh
+     * copy, so the fresh copy need not be turned into packets. The cached
+     * segment counts as fresh again, and clients part way through it keep
+     * sending the same packets.
+     * 
+     * @param String path cycle path the segment came from
+     * @param int segmentNumber
+     * @param byte[] digest hash of the data of the fresh copy
+     * @param Optional<SegmentSource> source file the fresh copy was loaded
+     *        from
+     * @return Optional<NabuSegment> the cached segment, empty if it is not
+     *         cached or was built from other data
+     */
+    public synchronized Optional<NabuSegment> renew(String path,
+            int segmentNumber, byte[] digest, Optional<SegmentSource> source)
+    {
+        Entry entry = segments.get(new Key(path, segmentNumber));
+        if (entry == null || entry.digest == null
+                || !MessageDigest.isEqual(entry.digest, digest))
+        {
+            return Optional.empty();
+        }
+        entry.source = source;
+        entry.loaded = System.currentTimeMillis();
+        entry.refreshing = false;
+        return Optional.of(entry.segment);
+    }
+
+    /**
+     * Cache a segment loaded from a file, evicting the least recently used
+     * segments if needed
+     * 
+     * @param String path cycle path the segment came from
+     * @param NabuSegment segment
+     * @param Optional<SegmentSource> source file the segment was loaded from
+     * @param byte[] digest hash of the data the segment was built from, or
+     *        null
+     */
+    public synchronized void put(String path, NabuSegment segment,
+            Optional<SegmentSource> source, byte[] digest)
+    {
+        Entry entry = new Entry(segment, source, digest);
+        if (entry.weight > capacity)
+        {
+            logger.debug("Segment {} is larger than the cache, not caching",
+                    String.format("%06x", segment.getName()));
+            return;
+        }
+
+        Key key = new Key(path, segment.getName());
+        Entry previous = segments.put(key, entry);
+        if (previous != null)
+        {
+            size -= previous.weight;
+            if (previous.refreshing)
+            {
+                logger.debug("Segment {} of {} changed, swapped in",
+                        String.format("%06x", segment.getName()), path);
+                refreshes++;
+            }
+        }
+        size += entry.weight;
+
+        Iterator<Map.Entry<Key, Entry>> eldest = segments.entrySet()
+                .iterator();
+        while (size > capacity && eldest.hasNext())
+        {
+            Map.Entry<Key, Entry> next = eldest.next();
+            logger.debug("Evicting segment {} of {}",
+                    String.format("%06x", next.getKey().segmentNumber),
+                    next.getKey().path);
+            size -= next.getValue().weight;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Remove a segment from the cache
+     * 
+     * @param String path cycle path the segment came from
+     * @param int segmentNumber
+     */
+    public synchronized void invalidate(String path, int segmentNumber)
+    {
+        Entry entry = segments.remove(new Key(path, segmentNumber));
+        if (entry != null)
+        {
+            size -= entry.weight;
+        }
+    }
+
+    /**
+     * Remove every segment of a cycle from the cache
+     * 
+     * @param String path cycle path
+     */
+    public synchronized void invalidateAll(String path)
+    {
+        Iterator<Map.Entry<Key, Entry>> entries = segments.entrySet()
+                .iterator();
+        while (entries.hasNext())
+        {
+            Map.Entry<Key, Entry> entry = entries.next();
+            if (entry.getKey().path.equals(path))
+            {
+                size -= entry.getValue().weight;
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * @return long number of cached segments
+     */
+    public synchronized long getCount()
+    {
+        return segments.size();
+    }
+
+    /**
+     * @return long bytes of segment data held
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return long maximum bytes of segment data to hold
+     */
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * @return long
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * @return long
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return long
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * @return long
+     */
+    public synchronized long getInvalidations()
+    {
+        return invalidations;
+    }
+
+    /**
+     * @return long
+     */
+    public synchronized long getStaleHits()
+    {
+        return staleHits;
+    }
+
+    /**
+     * @return long
+     */
+    public synchronized long getRefreshes()
+    {
+        return refreshes;
+    }
+
+    /**
+     * @return long
+     */
+    public synchronized long getExpirations()
+    {
+        return expirations;
+    }
+
+    /**
+     * A cached segment and where it came from. Lookups read the source and
+     * when it was loaded outside of the cache lock, while renewing it writes
+     * them under the lock.
+     */
+    private static class Entry
+    {
+        /**
+         * Cached segment
+         */
+        private NabuSegment segment;
+
+        /**
+         * File the segment was loaded from, if it was loaded from a file
+         */
+        private volatile Optional<SegmentSource> source;
+
+        /**
+         * Bytes held by the segment
+         */
+        private long weight;
+
+        /**
+         * When the segment was loaded, or last found unchanged
+         */
+        private volatile long loaded;
+
+        /**
+         * Hash of the data the segment was built from, null if not known
+         */
+        private byte[] digest;
+
+        /**
+         * Whether a fresh copy of the segment is being loaded
+         */
+        private boolean refreshing;
+
+        /**
+         * When the file the segment was loaded from was last found unchanged
+         */
+        private volatile long checked;
+
+        /**
+         * Constructor
+         */
+        Entry(NabuSegment segment, Optional<SegmentSource> source,
+                byte[] digest)
+        {
+            this.segment = segment;
+            this.source = source;
+            this.digest = digest;
+            this.weight = segment.getSize();
+            this.loaded = System.currentTimeMillis();
+            this.checked = this.loaded;
+        }
+    }
+
+    /**
+     * Cache key, the cycle path and the segment number
+     */
+    private static class Key
+    {
+        /**
+         * Cycle path
+         */
+        private String path;
+
+        /**
+         * Segment number
+         */
+        private int segmentNumber;
+
+        /**
+         * Constructor
+         */
+        Key(String path, int segmentNumber)
+        {
+            this.path = path;
+            this.segmentNumber = segmentNumber;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Key))
+            {
+                return false;
+            }
+            Key key = (Key) other;
+            return segmentNumber == key.segmentNumber && path.equals(key.path);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(path, segmentNumber);
+        }
+    }
+}
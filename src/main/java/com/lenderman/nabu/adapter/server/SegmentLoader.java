@@ -0,0 +1,536 @@
+package com.lenderman.nabu.adapter.server;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.lenderman.nabu.adapter.loader.Loader;
+import com.lenderman.nabu.adapter.loader.LocalLoader;
+import com.lenderman.nabu.adapter.loader.ZipLoader;
+import com.lenderman.nabu.adapter.metrics.Metrics;
+import com.lenderman.nabu.adapter.model.packet.NabuSegment;
+import com.lenderman.nabu.adapter.model.settings.Settings;
+
+/**
+ * Finds the segments of a cycle, from the segment cache when it can and from
+ * the cycle's loader when it has to. Loaded segments are added to the cache,
+ * and stale ones are served from it while they are refreshed. Safe to use
+ * from any thread, so clients and background loads share it.
+ */
+public class SegmentLoader
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager
+            .getLogger(SegmentLoader.class);
+
+    /**
+     * Cache of loaded segments
+     */
+    private SegmentCache cache;
+
+    /**
+     * Finds the file holding each segment of a cycle directory
+     */
+    private SegmentResolver resolver;
+
+    /**
+     * Loads in progress, keyed by cycle path and segment number
+     */
+    private Map<String, CompletableFuture<Optional<NabuSegment>>> loading = new ConcurrentHashMap<String, CompletableFuture<Optional<NabuSegment>>>();
+
+    /**
+     * Segments still streaming in, keyed by cycle path and segment number
+     */
+    private Map<String, StreamingSegment> streaming = new ConcurrentHashMap<String, StreamingSegment>();
+
+    /**
+     * Cycle bundles mapped so far, keyed by bundle path
+     */
+    private Map<String, CycleBundle> bundles = new ConcurrentHashMap<String, CycleBundle>();
+
+    /**
+     * Threads loading fresh copies of stale segments
+     */
+    private ExecutorService refreshes = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Segment refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor
+     * 
+     * @param SegmentCache cache
+     * @param SegmentResolver resolver
+     */
+    public SegmentLoader(SegmentCache cache, SegmentResolver resolver)
+    {
+        this.cache = cache;
+        this.resolver = resolver;
+    }
+
+    /**
+     * @return SegmentCache
+     */
+    public SegmentCache getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * Get a segment of the cycle, loading and caching it if needed
+     * 
+     * @param Loader loader that can reach the cycle
+     * @param String path cycle path
+     * @param String preservedPath where to preserve loaded data, or null
+     * @param int segmentNumber
+     * @return Optional<NabuSegment>
+     */
+    public Optional<NabuSegment> getSegment(Loader loader, String path,
+            String preservedPath, int segmentNumber) throws Exception
+    {
+        long start = System.nanoTime();
+        if (isBundle(loader, path))
+        {
+            // Already packetized and mapped, nothing to cache
+            Optional<NabuSegment> segment = this.getBundle(path)
+                    .getSegment(segmentNumber);
+            Metrics.recordLoad("bundle", System.nanoTime() - start);
+            return segment;
+        }
+
+        Optional<NabuSegment> segment = cache.get(path, segmentNumber,
+                () -> this.refresh(loader, path, preservedPath, segmentNumber));
+        if (segment.isPresent())
+        {
+            Metrics.recordLoad("cache", System.nanoTime() - start);
+            return segment;
+        }
+
+        StreamingSegment stream = streaming.get(path + "\t" + segmentNumber);
+        if (stream != null && stream.getFailure() == null)
+        {
+            // Still arriving, the NABU is usually right behind it
+            Metrics.recordLoad("stream", System.nanoTime() - start);
+            return Optional.of(stream.getSegment());
+        }
+
+        segment = this.loadSegment(loader, path, preservedPath, segmentNumber);
+        Metrics.recordLoad(getSourceName(loader), System.nanoTime() - start);
+        return segment;
+    }
+
+    /**
+     * Name where a loader gets segments from, for metrics
+     * 
+     * @param Loader loader
+     * @return String
+     */
+    private static String getSourceName(Loader loader)
+    {
+        if (loader instanceof LocalLoader)
+        {
+            return "local";
+        }
+        else if (loader instanceof ZipLoader)
+        {
+            return "zip";
+        }
+        return "web";
+    }
+
+    /**
+     * Forget a segment that failed while it was streaming in
+     * 
+     * @param String path cycle path
+     * @param int segmentNumber
+     */
+    public void dropFailed(String path, int segmentNumber)
+    {
+        String key = path + "\t" + segmentNumber;
+        StreamingSegment stream = streaming.get(key);
+        if (stream != null && stream.getFailure() != null)
+        {
+            streaming.remove(key, stream);
+        }
+    }
+
+    /**
+     * Load a segment of the cycle and cache it. If the segment is already
+     * being loaded, wait for that load instead of starting another one.
+     * 
+     * @param Loader loader that can reach the cycle
+     * @param String path cycle path
+     * @param String preservedPath where to preserve loaded data, or null
+     * @param int segmentNumber
+     * @return Optional<NabuSegment>
+     */
+    public Optional<NabuSegment> loadSegment(Loader loader, String path,
+            String preservedPath, int segmentNumber) throws Exception
+    {
+        if (isBundle(loader, path))
+        {
+            return this.getBundle(path).getSegment(segmentNumber);
+        }
+        return this.loadOnce(loader, path, preservedPath, segmentNumber, true);
+    }
+
+    /**
+     * Load a segment of the cycle and cache it, or wait for the load already
+     * under way
+     * 
+     * @param Loader loader that can reach the cycle
+     * @param String path cycle path
+     * @param String preservedPath where to preserve loaded data, or null
+     * @param int segmentNumber
+     * @param boolean useCached true to return the segment if another load
+     *        cached it since the cache was checked, false to load a fresh copy
+     * @return Optional<NabuSegment>
+     */
+    private Optional<NabuSegment> loadOnce(Loader loader, String path,
+            String preservedPath, int segmentNumber, boolean useCached)
+            throws Exception
+    {
+        String key = path + "\t" + segmentNumber;
+        CompletableFuture<Optional<NabuSegment>> load = new CompletableFuture<Optional<NabuSegment>>();
+        CompletableFuture<Optional<NabuSegment>> existing = loading
+                .putIfAbsent(key, load);
+        if (existing != null)
+        {
+            logger.debug("Waiting for segment {} to be loaded",
+                    String.format("%06x", segmentNumber));
+            try
+            {
+                return existing.get();
+            }
+            catch (ExecutionException ex)
+            {
+                throw ex.getCause() instanceof Exception
+                        ? (Exception) ex.getCause()
+                        : ex;
+            }
+        }
+
+        try
+        {
+            // Another load may have finished since the cache was checked
+            Optional<NabuSegment> segment = useCached
+                    ? cache.get(path, segmentNumber)
+                    : Optional.empty();
+            if (!segment.isPresent())
+            {
+                segment = this.load(loader, path, preservedPath,
+                        segmentNumber);
+            }
+            load.complete(segment);
+            return segment;
+        }
+        catch (Exception ex)
+        {
+            load.completeExceptionally(ex);
+            throw ex;
+        }
+        finally
+        {
+            // The segment is cached or streaming by now
+            loading.remove(key, load);
+        }
+    }
+
+    /**
+     * Load a fresh copy of a stale segment in the background. The stale one
+     * is served until the fresh one is cached. A load of the segment already
+     * under way is waited for rather than repeated.
+     * 
+     * @param Loader loader that can reach the cycle
+     * @param String path cycle path
+     * @param String preservedPath where to preserve loaded data, or null
+     * @param int segmentNumber
+     */
+    private void refresh(Loader loader, String path, String preservedPath,
+            int segmentNumber)
+    {
+        refreshes.execute(() -> {
+            try
+            {
+                Optional<NabuSegment> segment = this.loadOnce(loader, path,
+                        preservedPath, segmentNumber, false);
+                if (!segment.isPresent())
+                {
+                    logger.debug("Segment {} of {} is gone",
+                            String.format("%06x", segmentNumber), path);
+                    cache.invalidate(path, segmentNumber);
+                    return;
+                }
+
+                StreamingSegment stream = streaming
+                        .get(path + "\t" + segmentNumber);
+                if (stream != null)
+                {
+                    stream.getLoad().whenComplete((data, ex) -> {
+                        if (ex != null)
+                        {
+                            cache.refreshFailed(path, segmentNumber);
+                        }
+                    });
+                }
+            }
+            catch (Exception ex)
+            {
+                logger.warn("Could not refresh segment {} of {}, serving it stale",
+                        String.format("%06x", segmentNumber), path, ex);
+                cache.refreshFailed(path, segmentNumber);
+            }
+        });
+    }
+
+    /**
+     * Load a segment of the cycle and cache it
+     * 
+     * @param Loader loader that can reach the cycle
+     * @param String path cycle path
+     * @param String preservedPath where to preserve loaded data, or null
+     * @param int segmentNumber
+     * @return Optional<NabuSegment>
+     */
+    private Optional<NabuSegment> load(Loader loader, String path,
+            String preservedPath, int segmentNumber) throws Exception
+    {
+        Optional<byte[]> data = Optional.empty();
+        boolean pak = false;
+        String sourcePath = path;
+
+        // if the path ends with .nabu:
+        if (path.toLowerCase().endsWith(".nabu") && segmentNumber == 1)
+        {
+            data = loader.tryGetData(path, preservedPath);
+            if (data.isPresent())
+            {
+                logger.debug("Loading NABU segment {} from {}",
+                        String.format("%06x", segmentNumber), path);
+            }
+        }
+        else if (path.toLowerCase().endsWith(".pak") && segmentNumber == 1)
+        {
+            data = loader.tryGetData(path, preservedPath);
+            pak = true;
+            if (data.isPresent())
+            {
+                logger.debug("Creating NABU segment {} from {}",
+                        String.format("%06x", segmentNumber), path);
+            }
+        }
+        else
+        {
+            Optional<String> directory = loader.tryGetDirectory(path);
+
+            if (directory.isPresent())
+            {
+                Optional<SegmentResolver.ResolvedSegment> resolved = resolver
+                        .resolve(loader, directory.get(), preservedPath,
+                                segmentNumber);
+                if (resolved.isPresent() && resolved.get().getStream() != null)
+                {
+                    logger.debug("Streaming NABU segment {} from {}",
+                            String.format("%06x", segmentNumber),
+                            resolved.get().getPath());
+                    return this.stream(path, segmentNumber,
+                            resolved.get().getStream());
+                }
+                else if (resolved.isPresent() && resolved.get().isPak())
+                {
+                    logger.debug("Loading NABU segment {} from {}",
+                            String.format("%06x", segmentNumber),
+                            resolved.get().getPath());
+                    sourcePath = resolved.get().getPath();
+                    data = Optional.of(resolved.get().getData());
+                    pak = true;
+                }
+                else if (resolved.isPresent())
+                {
+                    logger.debug("Creating NABU segment {} from {}",
+                            String.format("%06x", segmentNumber),
+                            resolved.get().getPath());
+                    sourcePath = resolved.get().getPath();
+                    data = Optional.of(resolved.get().getData());
+                }
+            }
+        }
+
+        if (!data.isPresent())
+        {
+            return Optional.empty();
+        }
+
+        // Local files are checked for changes every time the segment is
+        // asked for, so a rebuilt segment is picked up right away
+        Optional<SegmentSource> source = Optional.empty();
+        if (loader instanceof LocalLoader
+                && !sourcePath.equals(Settings.HeadlessBootLoader))
+        {
+            source = SegmentSource.of(sourcePath);
+        }
+        else if (loader instanceof ZipLoader
+                && ((ZipLoader) loader).getLocalArchive().isPresent())
+        {
+            // Rebuilding the archive may have changed any of its files
+            source = SegmentSource
+                    .of(((ZipLoader) loader).getLocalArchive().get());
+        }
+
+        // A refresh usually finds the data unchanged, keep the packets built
+        // from it before
+        byte[] digest = digest(data.get());
+        Optional<NabuSegment> cached = cache.renew(path, segmentNumber,
+                digest, source);
+        if (cached.isPresent())
+        {
+            return cached;
+        }
+
+        NabuSegment segment = pak
+                ? SegmentManager.loadPackets(segmentNumber, data.get())
+                : SegmentManager.createPackets(segmentNumber, data.get());
+        this.put(path, segment, source, digest);
+        return Optional.of(segment);
+    }
+
+    /**
+     * Serve a segment while it streams in, and cache it once it is all there
+     * 
+     * @param String path cycle path
+     * @param int segmentNumber
+     * @param StreamingSegment stream
+     * @return Optional<NabuSegment>
+     */
+    private Optional<NabuSegment> stream(String path, int segmentNumber,
+            StreamingSegment stream)
+    {
+        String key = path + "\t" + segmentNumber;
+        streaming.put(key, stream);
+        stream.getLoad().whenComplete((data, ex) -> {
+            try
+            {
+                // Cache it before it stops being found here
+                if (ex == null)
+                {
+                    byte[] digest = digest(data);
+                    if (!cache.renew(path, segmentNumber, digest,
+                            Optional.empty()).isPresent())
+                    {
+                        this.put(path,
+                                SegmentManager.createPackets(segmentNumber,
+                                        data),
+                                Optional.empty(), digest);
+                    }
+                }
+            }
+            catch (Exception cacheEx)
+            {
+                logger.error("Could not cache segment {}",
+                        String.format("%06x", segmentNumber), cacheEx);
+            }
+            finally
+            {
+                streaming.remove(key, stream);
+            }
+        });
+        return Optional.of(stream.getSegment());
+    }
+
+    /**
+     * Indicate if a cycle path is a local cycle bundle
+     * 
+     * @param Loader loader that can reach the cycle
+     * @param String path cycle path
+     * @return boolean
+     */
+    public static boolean isBundle(Loader loader, String path)
+    {
+        return loader instanceof LocalLoader
+                && path.toLowerCase().endsWith(CycleBundle.Extension);
+    }
+
+    /**
+     * Get the mapped bundle for a path, mapping it again if the file was
+     * replaced since it was last mapped
+     * 
+     * @param String path bundle path
+     * @return CycleBundle
+     */
+    private CycleBundle getBundle(String path) throws Exception
+    {
+        CycleBundle bundle = bundles.get(path);
+        if (bundle == null || !bundle.isCurrent())
+        {
+            logger.debug("Mapping cycle bundle {}", path);
+            bundle = CycleBundle.open(Paths.get(path));
+            bundles.put(path, bundle);
+        }
+        return bundle;
+    }
+
+    /**
+     * Cache a segment
+     * 
+     * @param String path cycle path
+     * @param NabuSegment segment
+     * @param Optional<SegmentSource> source file the segment was loaded from
+     * @param byte[] digest hash of the data the segment was built from
+     */
+    private void put(String path, NabuSegment segment,
+            Optional<SegmentSource> source, byte[] digest)
+    {
+        cache.put(path, segment, source, digest);
+        logger.debug(
+                "Segment cache holds {} segments in {} bytes, {} hits, {} misses, {} evictions, {} invalidations, {} stale hits, {} refreshes, {} expirations",
+                cache.getCount(), cache.getSize(), cache.getHits(),
+                cache.getMisses(), cache.getEvictions(),
+                cache.getInvalidations(), cache.getStaleHits(),
+                cache.getRefreshes(), cache.getExpirations());
+    }
+
+    /**
+     * Hash of the data a segment is built from
+     * 
+     * @param byte[] data
+     * @return byte[]
+     */
+    private static byte[] digest(byte[] data) throws NoSuchAlgorithmException
+    {
+        return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+}
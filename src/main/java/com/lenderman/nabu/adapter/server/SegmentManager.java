@@ -23,17 +23,17 @@ package com.lenderman.nabu.adapter.server;
  * SOFTWARE.
  */
 
-import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import com.lenderman.nabu.adapter.model.packet.LazyPacketList;
 import com.lenderman.nabu.adapter.model.packet.NabuPacket;
 import com.lenderman.nabu.adapter.model.packet.NabuSegment;
 import com.lenderman.nabu.adapter.utilities.CRC;
-import com.lenderman.nabu.adapter.utilities.ConversionUtils;
 
 public class SegmentManager
 {
@@ -43,6 +43,11 @@ public class SegmentManager
     private static final Logger logger = LogManager
             .getLogger(SegmentManager.class);
 
+    /**
+     * Largest segment file that can be packetized
+     */
+    public static final int MaxFileSize = 0xFFFF;
+
     /**
      * Create the time segment that the nabu can parse.
      * 
@@ -54,43 +59,23 @@ public class SegmentManager
 
         Calendar dateTime = Calendar.getInstance(TimeZone.getDefault());
 
-        List<Byte> list = new ArrayList<>();
-        list.add(ConversionUtils.byteVal(0x7F));
-        list.add(ConversionUtils.byteVal(0xFF));
-        list.add(ConversionUtils.byteVal(0xFF));
-        list.add(ConversionUtils.byteVal(0x0));
-        list.add(ConversionUtils.byteVal(0x0));
-        list.add(ConversionUtils.byteVal(0x7F));
-        list.add(ConversionUtils.byteVal(0xFF));
-        list.add(ConversionUtils.byteVal(0xFF));
-        list.add(ConversionUtils.byteVal(0xFF));
-        list.add(ConversionUtils.byteVal(0x7F));
-        list.add(ConversionUtils.byteVal(0x80));
-        list.add(ConversionUtils.byteVal(0x30));
-        list.add(ConversionUtils.byteVal(0x0));
-        list.add(ConversionUtils.byteVal(0x0));
-        list.add(ConversionUtils.byteVal(0x0));
-        list.add(ConversionUtils.byteVal(0x0));
-        list.add(ConversionUtils.byteVal(0x2));
-        list.add(ConversionUtils.byteVal(0x2));
-        list.add(ConversionUtils.byteVal(dateTime.get(Calendar.DAY_OF_WEEK)));
-        list.add(ConversionUtils.byteVal(0x54));
-        list.add(ConversionUtils.byteVal(dateTime.get(Calendar.MONTH) + 1));
-        list.add(ConversionUtils.byteVal(dateTime.get(Calendar.DAY_OF_MONTH)));
-        list.add(ConversionUtils.byteVal(dateTime.get(Calendar.HOUR)));
-        list.add(ConversionUtils.byteVal(dateTime.get(Calendar.MINUTE)));
-        list.add(ConversionUtils.byteVal(dateTime.get(Calendar.SECOND)));
-        list.add(ConversionUtils.byteVal(0x0));
-        list.add(ConversionUtils.byteVal(0x0));
-
-        byte[] crcData = CRC.calculateCycleCRC(list);
-
-        list.add(crcData[0]);
-        list.add(crcData[1]);
-
-        NabuPacket packet = new NabuPacket(ConversionUtils.byteVal(0x0), list);
+        byte[] data = new byte[]
+        { (byte) 0x7F, (byte) 0xFF, (byte) 0xFF, 0x0, 0x0, (byte) 0x7F,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0x7F,
+                (byte) 0x80, 0x30, 0x0, 0x0, 0x0, 0x0, 0x2, 0x2,
+                (byte) dateTime.get(Calendar.DAY_OF_WEEK), 0x54,
+                (byte) (dateTime.get(Calendar.MONTH) + 1),
+                (byte) dateTime.get(Calendar.DAY_OF_MONTH),
+                (byte) dateTime.get(Calendar.HOUR),
+                (byte) dateTime.get(Calendar.MINUTE),
+                (byte) dateTime.get(Calendar.SECOND), 0x0, 0x0,
+                // CRC
+                0x0, 0x0 };
+
+        writeCrc(data);
+
         List<NabuPacket> packetList = new ArrayList<NabuPacket>();
-        packetList.add(packet);
+        packetList.add(new NabuPacket((byte) 0x0, data));
 
         return new NabuSegment(packetList, 0x7FFFFF);
     }
@@ -98,52 +83,90 @@ public class SegmentManager
     /**
      * Load the packets inside of the segment file (original Nabu cycle packet)
      * 
+     * Only the packet offsets are found up front, each packet is copied out
+     * and checked when the NABU first asks for it.
+     * 
      * @param segmentNumber Name of the segment file
      * @param data Contents of the file as a byte array
      * @return NabuSegment
      */
     public static NabuSegment loadPackets(int segmentNumber, byte[] data)
             throws Exception
+    {
+        return loadPackets(segmentNumber, data, null);
+    }
+
+    /**
+     * Load the packets inside of the segment file (original Nabu cycle packet)
+     * and count the packets whose CRC had to be fixed as they are built
+     * 
+     * @param segmentNumber Name of the segment file
+     * @param data Contents of the file as a byte array
+     * @param crcRepairs counts fixed CRCs, or null
+     * @return NabuSegment
+     */
+    public static NabuSegment loadPackets(int segmentNumber, byte[] data,
+            AtomicInteger crcRepairs) throws Exception
     {
         logger.debug("Loading segment for {}", segmentNumber);
 
-        if (data.length > 0xFFFFL)
+        if (data.length > MaxFileSize)
         {
             throw new Exception("File " + segmentNumber + " is too large");
         }
-        ByteArrayInputStream baos = new ByteArrayInputStream(data);
-        List<NabuPacket> list = new ArrayList<NabuPacket>();
-        byte packetNumber = 0;
 
-        // Ok, read in the segment file into its constituent packets
-        int b = baos.read();
-        while (b != -1)
+        // Index the packets, a file can hold at most one per three bytes
+        int[] offsets = new int[data.length / 3 + 1];
+        int[] lengths = new int[offsets.length];
+        int count = 0;
+        long packetBytes = 0;
+        int position = 0;
+
+        while (position < data.length)
         {
             // Get the first two bytes, this is the length of this segment
-            int segmentLength = b + (baos.read() << 8);
+            if (position + 1 >= data.length)
+            {
+                break;
+            }
+            int segmentLength = (data[position] & 0xFF)
+                    + ((data[position + 1] & 0xFF) << 8);
+            position += 2;
 
             if (segmentLength > 0
                     && segmentLength <= NabuPacket.MaxPacketSize())
             {
-                // ok, Read this segment
-                byte[] segmentData = new byte[segmentLength];
-                baos.read(segmentData, 0, segmentLength);
-
-                NabuPacket packet = new NabuPacket(packetNumber,
-                        ConversionUtils.convertToByteList(segmentData));
-                validatePacket(packet.getSegmentData());
-                list.add(packet);
-                packetNumber++;
+                offsets[count] = position;
+                lengths[count] = segmentLength;
+                packetBytes += segmentLength;
+                count++;
+                position += segmentLength;
             }
-            b = baos.read();
         }
 
-        return new NabuSegment(list, segmentNumber);
+        LazyPacketList packets = new LazyPacketList(count, index -> {
+            // ok, Read this segment, a short file leaves the rest zeroed
+            byte[] segmentData = new byte[lengths[index]];
+            int available = Math.max(0,
+                    Math.min(lengths[index], data.length - offsets[index]));
+            System.arraycopy(data, offsets[index], segmentData, 0, available);
+
+            if (!validatePacket(segmentData) && crcRepairs != null)
+            {
+                crcRepairs.incrementAndGet();
+            }
+            return new NabuPacket((byte) index, segmentData);
+        });
+
+        return new NabuSegment(packets, segmentNumber,
+                data.length + 2 * packetBytes);
     }
 
     /**
      * Create packet objects for a compiled program
      * 
+     * Each packet is built when the NABU first asks for it.
+     * 
      * @param segmentNumber Name of segment file
      * @param data Binary data to make into segments
      * @return NabuSegment
@@ -153,34 +176,31 @@ public class SegmentManager
     {
         logger.debug("Creating segment for {}", segmentNumber);
 
-        if (data.length > 0xFFFFL)
+        if (data.length > MaxFileSize)
         {
             throw new Exception("File " + segmentNumber + " is too large");
         }
-        ByteArrayInputStream baos = new ByteArrayInputStream(data);
-        List<NabuPacket> packets = new ArrayList<NabuPacket>();
+        int count = (data.length + NabuPacket.PacketDataLength - 1)
+                / NabuPacket.PacketDataLength;
         byte packetNumber = 0;
-        int offset = 0;
-        while (true)
-        {
-            byte[] buffer = new byte[NabuPacket.PacketDataLength];
-            int bytesRead = baos.read(buffer, 0, buffer.length);
-            if (bytesRead == -1)
-            {
-                // We're done
-                break;
-            }
+
+        LazyPacketList packets = new LazyPacketList(count, index -> {
+            int offset = index * NabuPacket.PacketDataLength;
+            int bytesRead = Math.min(NabuPacket.PacketDataLength,
+                    data.length - offset);
 
             // If we are at the EOF, then this is the last segment
-            boolean lastSegment = baos.available() == 0;
+            boolean lastSegment = offset + bytesRead == data.length;
 
             // Create the segment
-            packets.add(new NabuPacket(packetNumber, createPacket(segmentNumber,
-                    packetNumber, offset, lastSegment, buffer, bytesRead)));
-            offset += bytesRead;
-        }
-
-        return new NabuSegment(packets, segmentNumber);
+            return new NabuPacket(packetNumber, createPacket(segmentNumber,
+                    packetNumber, offset, lastSegment, data, bytesRead));
+        });
+
+        long packetBytes = data.length + (long) count
+                * (NabuPacket.PacketHeaderLength + NabuPacket.CrcLength);
+        return new NabuSegment(packets, segmentNumber,
+                data.length + 2 * packetBytes);
     }
 
     /**
@@ -188,38 +208,39 @@ public class SegmentManager
      * 
      * @param segmentNumber Segment number
      * @param packetNumber Packet number
-     * @param offset offset
+     * @param offset offset of the payload in data
      * @param lastSegment
      * @param data
-     * @param bytesRead
-     * @return List<Byte>
+     * @param bytesRead length of the payload
+     * @return byte[]
      */
-    private static List<Byte> createPacket(int segmentNumber, byte packetNumber,
+    static byte[] createPacket(int segmentNumber, byte packetNumber,
             int offset, boolean lastSegment, byte[] data, int bytesRead)
     {
         logger.debug("Creating segment for segment number {} at offset {}",
                 segmentNumber, offset);
 
-        List<Byte> list = new ArrayList<>();
+        byte[] packet = new byte[NabuPacket.PacketHeaderLength + bytesRead
+                + NabuPacket.CrcLength];
 
         // Cobble together the header
-        list.add(ConversionUtils.byteVal((int) (segmentNumber >> 16) & 0xFF));
-        list.add(ConversionUtils.byteVal((int) (segmentNumber >> 8) & 0xFF));
-        list.add(ConversionUtils.byteVal((int) (segmentNumber & 0xFF)));
-        list.add(packetNumber);
+        packet[0] = (byte) ((segmentNumber >> 16) & 0xFF);
+        packet[1] = (byte) ((segmentNumber >> 8) & 0xFF);
+        packet[2] = (byte) (segmentNumber & 0xFF);
+        packet[3] = packetNumber;
 
         // Owner
-        list.add(ConversionUtils.byteVal(0x1));
+        packet[4] = 0x1;
 
         // Tier
-        list.add(ConversionUtils.byteVal(0x7F));
-        list.add(ConversionUtils.byteVal(0xFF));
-        list.add(ConversionUtils.byteVal(0xFF));
-        list.add(ConversionUtils.byteVal(0xFF));
+        packet[5] = (byte) 0x7F;
+        packet[6] = (byte) 0xFF;
+        packet[7] = (byte) 0xFF;
+        packet[8] = (byte) 0xFF;
 
         // Mystery bytes
-        list.add(ConversionUtils.byteVal(0x7F));
-        list.add(ConversionUtils.byteVal(0x80));
+        packet[9] = (byte) 0x7F;
+        packet[10] = (byte) 0x80;
 
         // Packet Type
         byte type = 0x20;
@@ -230,58 +251,64 @@ public class SegmentManager
         }
         else if (packetNumber == 0)
         {
-            type = ConversionUtils.byteVal(0xa1);
+            type = (byte) 0xa1;
         }
 
-        list.add(type);
-        list.add(packetNumber);
-        list.add(ConversionUtils.byteVal(0x0));
-        list.add(ConversionUtils.byteVal((int) (offset >> 8) & 0xFF));
-        list.add(ConversionUtils.byteVal((int) (offset & 0xFF)));
+        packet[11] = type;
+        packet[12] = packetNumber;
+        packet[13] = 0x0;
+        packet[14] = (byte) ((offset >> 8) & 0xFF);
+        packet[15] = (byte) (offset & 0xFF);
 
         // Payload
-        for (int index = 0; index < bytesRead; index++)
-        {
-            list.add(data[index]);
-        }
+        System.arraycopy(data, offset, packet, NabuPacket.PacketHeaderLength,
+                bytesRead);
 
         // CRC
-        byte[] crcData = CRC.calculateCycleCRC(list);
+        writeCrc(packet);
+        return packet;
+    }
 
-        list.add(crcData[0]);
-        list.add(crcData[1]);
-        return list;
+    /**
+     * Calculate the CRC of the packet and write it to its last two bytes
+     * 
+     * @param packet packet data, ending in room for the CRC
+     */
+    private static void writeCrc(byte[] packet)
+    {
+        byte[] crcData = CRC.calculateCycleCRC(packet, 0,
+                packet.length - NabuPacket.CrcLength);
+        packet[packet.length - 2] = crcData[0];
+        packet[packet.length - 1] = crcData[1];
     }
 
     /**
      * Validate the packet CRC
      * 
      * @param packetData packet data
+     * @return false if the CRC was bad and has been fixed
      */
-    private static void validatePacket(List<Byte> packetData)
+    private static boolean validatePacket(byte[] packetData)
     {
-        List<Byte> data = new ArrayList<>(packetData.size() - 2);
-        data.addAll(packetData);
-        data.remove(packetData.size() - 1);
-        data.remove(packetData.size() - 2);
-        byte[] crcData = CRC.calculateCycleCRC(data);
-
-        if (packetData.get(packetData.size() - 2) != crcData[0]
-                || packetData.get(packetData.size() - 1) != crcData[1])
+        byte[] crcData = CRC.calculateCycleCRC(packetData, 0,
+                packetData.length - NabuPacket.CrcLength);
+
+        if (packetData[packetData.length - 2] != crcData[0]
+                || packetData[packetData.length - 1] != crcData[1])
         {
             logger.warn("CRC Bad, Calculated {}, {} but read {}, {}",
                     String.format("0x%02x", ((int) crcData[0] & 0xff)),
                     String.format("0x%02x", ((int) crcData[1] & 0xff)),
                     String.format("0x%02x",
-                            ((int) packetData.get(packetData.size() - 2)
-                                    & 0xff)),
+                            ((int) packetData[packetData.length - 2] & 0xff)),
                     String.format("0x%02x",
-                            ((int) packetData.get(packetData.size() - 1)
-                                    & 0xff)));
+                            ((int) packetData[packetData.length - 1] & 0xff)));
 
             // Fix the CRC so that the nabu will load.
-            packetData.set(packetData.size() - 2, crcData[0]);
-            packetData.set(packetData.size() - 1, crcData[1]);
+            packetData[packetData.length - 2] = crcData[0];
+            packetData[packetData.length - 1] = crcData[1];
+            return false;
         }
+        return true;
     }
 }
@@ -0,0 +1,328 @@
+package com.lenderman.nabu.adapter.server;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.lenderman.nabu.adapter.loader.Loader;
+
+/**
+ * Learns the order in which NABUs ask for the segments of each cycle, and
+ * loads the segments that usually come next in the background while the
+ * current one is still being sent.
+ * 
+ * The model is first-order: for each segment, how many times each other
+ * segment was asked for right after it. It is saved to a file now and then
+ * and at shutdown, so what was learned survives a restart.
+ */
+public class SegmentPrefetcher
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager
+            .getLogger(SegmentPrefetcher.class);
+
+    /**
+     * Most segments to prefetch after any one segment
+     */
+    private static final int MaxPrefetch = 2;
+
+    /**
+     * A next segment is only prefetched if it followed at least this share of
+     * the time, in percent
+     */
+    private static final int MinimumSharePercent = 20;
+
+    /**
+     * Once the transitions out of a segment add up to this many, they are
+     * halved so that the model keeps up with cycles that change
+     */
+    private static final int MaxTransitions = 1000;
+
+    /**
+     * Seconds between saves of the model
+     */
+    private static final int SaveIntervalSeconds = 60;
+
+    /**
+     * Loads and caches segments
+     */
+    private SegmentLoader segmentLoader;
+
+    /**
+     * File the model is kept in
+     */
+    private Path modelFile;
+
+    /**
+     * Transition counts, keyed by cycle path, then segment, then next segment
+     */
+    private Map<String, Map<Integer, Map<Integer, Integer>>> transitions = new HashMap<String, Map<Integer, Map<Integer, Integer>>>();
+
+    /**
+     * Whether the model changed since it was last saved
+     */
+    private boolean dirty;
+
+    /**
+     * Segments being prefetched right now
+     */
+    private Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Threads that load prefetched segments
+     */
+    private ExecutorService workers = Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "Segment prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor
+     * 
+     * @param SegmentLoader segmentLoader loads and caches segments
+     * @param Path modelFile file the model is kept in
+     */
+    public SegmentPrefetcher(SegmentLoader segmentLoader, Path modelFile)
+    {
+        this.segmentLoader = segmentLoader;
+        this.modelFile = modelFile;
+    }
+
+    /**
+     * Load the saved model and start saving it periodically
+     */
+    public void start()
+    {
+        this.load();
+
+        ScheduledExecutorService saver = Executors
+                .newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "Segment prefetch model");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        saver.scheduleWithFixedDelay(this::save, SaveIntervalSeconds,
+                SaveIntervalSeconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::save));
+    }
+
+    /**
+     * A NABU moved on to a new segment. Learn from it, and start loading the
+     * segments that are likely to follow.
+     * 
+     * @param Loader loader that can reach the cycle
+     * @param String path cycle path
+     * @param String preservedPath where to preserve loaded data, or null
+     * @param int previousSegment segment asked for before, or -1 if none
+     * @param int segmentNumber segment asked for now
+     */
+    public void onSegment(Loader loader, String path, String preservedPath,
+            int previousSegment, int segmentNumber)
+    {
+        if (previousSegment >= 0)
+        {
+            this.record(path, previousSegment, segmentNumber);
+        }
+
+        for (int next : this.predict(path, segmentNumber))
+        {
+            String key = path + "#" + next;
+            if (segmentLoader.getCache().contains(path, next)
+                    || !inFlight.add(key))
+            {
+                continue;
+            }
+
+            workers.execute(() -> {
+                try
+                {
+                    logger.debug("Prefetching segment {} of {}",
+                            String.format("%06x", next), path);
+                    segmentLoader.loadSegment(loader, path, preservedPath,
+                            next);
+                }
+                catch (Exception ex)
+                {
+                    logger.debug("Could not prefetch segment {}: {}",
+                            String.format("%06x", next), ex.getMessage());
+                }
+                finally
+                {
+                    inFlight.remove(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * Count a transition from one segment to the next
+     * 
+     * @param String path cycle path
+     * @param int from
+     * @param int to
+     */
+    private synchronized void record(String path, int from, int to)
+    {
+        Map<Integer, Integer> next = transitions
+                .computeIfAbsent(path,
+                        k -> new HashMap<Integer, Map<Integer, Integer>>())
+                .computeIfAbsent(from, k -> new HashMap<Integer, Integer>());
+        next.merge(to, 1, Integer::sum);
+        dirty = true;
+
+        int total = next.values().stream().mapToInt(Integer::intValue).sum();
+        if (total > MaxTransitions)
+        {
+            next.replaceAll((segment, count) -> count / 2);
+            next.values().removeIf(count -> count == 0);
+        }
+    }
+
+    /**
+     * Segments likely to be asked for after this one, most likely first
+     * 
+     * @param String path cycle path
+     * @param int segmentNumber
+     * @return List<Integer>
+     */
+    private synchronized List<Integer> predict(String path, int segmentNumber)
+    {
+        List<Integer> predicted = new ArrayList<Integer>();
+        Map<Integer, Map<Integer, Integer>> cycle = transitions.get(path);
+        if (cycle == null || !cycle.containsKey(segmentNumber))
+        {
+            return predicted;
+        }
+
+        Map<Integer, Integer> next = cycle.get(segmentNumber);
+        int total = next.values().stream().mapToInt(Integer::intValue).sum();
+        next.entrySet().stream()
+                .filter(e -> e.getValue() * 100 >= total * MinimumSharePercent)
+                .sorted((a, b) -> b.getValue() - a.getValue())
+                .limit(MaxPrefetch).forEach(e -> predicted.add(e.getKey()));
+        return predicted;
+    }
+
+    /**
+     * Read the saved model, one transition per line: from, to, count and
+     * cycle path, separated by tabs
+     */
+    private synchronized void load()
+    {
+        if (!Files.exists(modelFile))
+        {
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(modelFile,
+                StandardCharsets.UTF_8))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4)
+                {
+                    continue;
+                }
+                transitions
+                        .computeIfAbsent(fields[3],
+                                k -> new HashMap<Integer, Map<Integer, Integer>>())
+                        .computeIfAbsent(Integer.parseInt(fields[0]),
+                                k -> new HashMap<Integer, Integer>())
+                        .put(Integer.parseInt(fields[1]),
+                                Integer.parseInt(fields[2]));
+            }
+            logger.debug("Loaded segment prefetch model for {} cycles",
+                    transitions.size());
+        }
+        catch (Exception ex)
+        {
+            logger.error("Could not load segment prefetch model", ex);
+        }
+    }
+
+    /**
+     * Save the model if it changed
+     */
+    private synchronized void save()
+    {
+        if (!dirty)
+        {
+            return;
+        }
+
+        try
+        {
+            // Write it aside and swap it in, so a crash never leaves half a
+            // model behind
+            Path temp = modelFile.resolveSibling(modelFile.getFileName() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temp,
+                    StandardCharsets.UTF_8))
+            {
+                for (Map.Entry<String, Map<Integer, Map<Integer, Integer>>> cycle : transitions
+                        .entrySet())
+                {
+                    for (Map.Entry<Integer, Map<Integer, Integer>> from : cycle
+                            .getValue().entrySet())
+                    {
+                        for (Map.Entry<Integer, Integer> to : from.getValue()
+                                .entrySet())
+                        {
+                            writer.write(from.getKey() + "\t" + to.getKey()
+                                    + "\t" + to.getValue() + "\t"
+                                    + cycle.getKey());
+                            writer.newLine();
+                        }
+                    }
+                }
+            }
+            Files.move(temp, modelFile, StandardCopyOption.REPLACE_EXISTING);
+            dirty = false;
+        }
+        catch (Exception ex)
+        {
+            logger.error("Could not save segment prefetch model", ex);
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package com.lenderman.nabu.adapter.server;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.lenderman.nabu.adapter.loader.Loader;
+import com.lenderman.nabu.adapter.loader.WebLoader;
+
+/**
+ * Works out which file holds a segment of a cycle directory, and loads it.
+ * 
+ * A segment can be XXXXXX.nabu, .NABU, .pak or .PAK. When the directory can
+ * be listed, the listing says which one exists and only that one is loaded.
+ * Otherwise every variant is asked for at the same time, and the first one
+ * found wins, in that order. Compiled programs from the web come back while
+ * they are still streaming in. Segments that were not found anywhere, and
+ * listings, are remembered for a while so they are not asked for again. A
+ * load that failed for any other reason, such as a timeout or a server
+ * error, says nothing about whether the segment exists, so it is reported to
+ * the caller and not remembered.
+ */
+public class SegmentResolver
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager
+            .getLogger(SegmentResolver.class);
+
+    /**
+     * Extensions a segment file may have, in order of preference
+     */
+    private static final String[] Extensions = new String[]
+    { ".nabu", ".NABU", ".pak", ".PAK" };
+
+    /**
+     * Most remembered misses before expired ones are cleared out
+     */
+    private static final int MaxMisses = 10000;
+
+    /**
+     * A loaded segment file
+     */
+    public static class ResolvedSegment
+    {
+        /**
+         * Full path of the file
+         */
+        private String path;
+
+        /**
+         * Contents of the file, null while it is streaming
+         */
+        private byte[] data;
+
+        /**
+         * The segment as it streams in, null if the file is already loaded
+         */
+        private StreamingSegment stream;
+
+        /**
+         * Constructor
+         * 
+         * @param String path
+         * @param byte[] data
+         */
+        private ResolvedSegment(String path, byte[] data)
+        {
+            this.path = path;
+            this.data = data;
+        }
+
+        /**
+         * Constructor for a file that is still loading
+         * 
+         * @param String path
+         * @param StreamingSegment stream
+         */
+        private ResolvedSegment(String path, StreamingSegment stream)
+        {
+            this.path = path;
+            this.stream = stream;
+        }
+
+        /**
+         * @return String
+         */
+        public String getPath()
+        {
+            return path;
+        }
+
+        /**
+         * @return byte[]
+         */
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        /**
+         * @return StreamingSegment, null if the file is already loaded
+         */
+        public StreamingSegment getStream()
+        {
+            return stream;
+        }
+
+        /**
+         * @return boolean true if the file holds packets, not a program
+         */
+        public boolean isPak()
+        {
+            return path.toLowerCase().endsWith(".pak");
+        }
+    }
+
+    /**
+     * A remembered directory listing
+     */
+    private static class Listing
+    {
+        /**
+         * File names, null if the directory can't be listed
+         */
+        private Set<String> names;
+
+        /**
+         * When the listing must be read again
+         */
+        private long expires;
+    }
+
+    /**
+     * How long misses and listings are remembered, in milliseconds
+     */
+    private long ttlMillis;
+
+    /**
+     * Segments that were not found, and until when, keyed by directory and
+     * segment name
+     */
+    private Map<String, Long> misses = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Directory listings, keyed by directory
+     */
+    private Map<String, Listing> listings = new ConcurrentHashMap<String, Listing>();
+
+    /**
+     * Threads asking for the variants of a segment
+     */
+    private ExecutorService probes = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Segment probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor
+     * 
+     * @param long ttlMillis how long misses and listings are remembered, 0 to
+     *        never remember them
+     */
+    public SegmentResolver(long ttlMillis)
+    {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Find and load the file holding a segment
+     * 
+     * @param Loader loader that can reach the directory
+     * @param String directory cycle directory
+     * @param String preservedPath where to preserve loaded data, or null
+     * @param int segmentNumber
+     * @return Optional<ResolvedSegment>
+     */
+    public Optional<ResolvedSegment> resolve(Loader loader, String directory,
+            String preservedPath, int segmentNumber) throws Exception
+    {
+        String segmentName = String.format("%06x", segmentNumber).toUpperCase();
+        String missKey = directory + loader.getPathSeparator() + segmentName;
+        long now = System.currentTimeMillis();
+
+        Long missExpires = misses.get(missKey);
+        if (missExpires != null && missExpires > now)
+        {
+            return Optional.empty();
+        }
+
+        Set<String> names = this.getListing(loader, directory, now);
+        if (names != null)
+        {
+            boolean listed = true;
+            for (String extension : Extensions)
+            {
+                if (names.contains(segmentName + extension))
+                {
+                    String fullPath = directory + loader.getPathSeparator()
+                            + segmentName + extension;
+                    Optional<ResolvedSegment> segment = await(this.load(loader,
+                            fullPath, preservedPath, segmentNumber,
+                            new ArrayList<Future<byte[]>>(),
+                            new ArrayList<StreamingSegment>()));
+                    if (segment.isPresent())
+                    {
+                        return segment;
+                    }
+                    // Gone since it was listed, see what is there now
+                    listings.remove(directory);
+                    listed = false;
+                    break;
+                }
+            }
+
+            if (listed)
+            {
+                return Optional.empty();
+            }
+        }
+
+        Optional<ResolvedSegment> segment = this.probe(loader, directory,
+                preservedPath, segmentNumber);
+        if (!segment.isPresent())
+        {
+            this.remember(missKey, now);
+        }
+        return segment;
+    }
+
+    /**
+     * Ask for every variant of a segment at the same time and take the most
+     * preferred one found, as soon as the ones preferred over it are known to
+     * be missing. If none is found and any of them failed to load, the
+     * failure is thrown rather than the segment being reported missing.
+     * 
+     * @param Loader loader that can reach the directory
+     * @param String directory cycle directory
+     * @param String preservedPath where to preserve loaded data, or null
+     * @param int segmentNumber
+     * @return Optional<ResolvedSegment>
+     */
+    private Optional<ResolvedSegment> probe(Loader loader, String directory,
+            String preservedPath, int segmentNumber) throws Exception
+    {
+        String segmentName = String.format("%06x", segmentNumber).toUpperCase();
+        List<Future<Optional<ResolvedSegment>>> variants = new ArrayList<Future<Optional<ResolvedSegment>>>();
+        List<Future<byte[]>> loads = new ArrayList<Future<byte[]>>();
+        List<StreamingSegment> streams = new ArrayList<StreamingSegment>();
+        for (String extension : Extensions)
+        {
+            variants.add(this.load(loader,
+                    directory + loader.getPathSeparator() + segmentName
+                            + extension,
+                    preservedPath, segmentNumber, loads, streams));
+        }
+
+        Optional<ResolvedSegment> found = Optional.empty();
+        Exception failure = null;
+        try
+        {
+            for (Future<Optional<ResolvedSegment>> variant : variants)
+            {
+                try
+                {
+                    found = await(variant);
+                }
+                catch (Exception ex)
+                {
+                    // Can't tell if this one is there, a later one may be
+                    if (failure == null)
+                    {
+                        failure = ex;
+                    }
+                    continue;
+                }
+                if (found.isPresent())
+                {
+                    return found;
+                }
+            }
+
+            if (failure != null)
+            {
+                throw failure;
+            }
+            return found;
+        }
+        finally
+        {
+            // Stop loading the variants that lost
+            for (Future<Optional<ResolvedSegment>> variant : variants)
+            {
+                variant.cancel(true);
+            }
+            for (Future<byte[]> load : loads)
+            {
+                load.cancel(true);
+            }
+            for (StreamingSegment stream : streams)
+            {
+                if (!found.isPresent() || found.get().getStream() != stream)
+                {
+                    stream.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Start loading one variant of a segment. Compiled programs from the web
+     * are streamed, and count as found as soon as they start to
+     * arrive.
+     * 
+     * @param Loader loader that can reach the file
+     * @param String fullPath file path
+     * @param String preservedPath where to preserve loaded data, or null
+     * @param int segmentNumber
+     * @param List<Future<byte[]>> loads collects the loads started
+     * @param List<StreamingSegment> streams collects the streams started
+     * @return Future<Optional<ResolvedSegment>>, empty if the file does not
+     *         exist, failing if it could not be loaded for any other reason
+     */
+    private Future<Optional<ResolvedSegment>> load(Loader loader,
+            String fullPath, String preservedPath, int segmentNumber,
+            List<Future<byte[]>> loads, List<StreamingSegment> streams)
+    {
+        if (!(loader instanceof WebLoader)
+                || !fullPath.toLowerCase().endsWith(".nabu"))
+        {
+            CompletableFuture<byte[]> load = loader.getDataAsync(fullPath,
+                    preservedPath);
+            loads.add(load);
+            return load.handle((data, ex) -> {
+                if (ex == null)
+                {
+                    return Optional.of(new ResolvedSegment(fullPath, data));
+                }
+                if (isMissing(ex))
+                {
+                    return Optional.<ResolvedSegment> empty();
+                }
+                throw ex instanceof CompletionException
+                        ? (CompletionException) ex
+                        : new CompletionException(ex);
+            });
+        }
+
+        StreamingSegment stream = new StreamingSegment(segmentNumber);
+        stream.setLoad(loader.getDataAsync(fullPath, preservedPath, stream));
+        streams.add(stream);
+        return probes.submit(() -> {
+            if (stream.awaitStart())
+            {
+                return Optional.of(new ResolvedSegment(fullPath, stream));
+            }
+
+            // Either missing or too large to be a segment
+            Throwable failure = stream.getFailure();
+            if (failure != null && !isMissing(failure))
+            {
+                throw new ExecutionException(failure);
+            }
+            return Optional.<ResolvedSegment> empty();
+        });
+    }
+
+    /**
+     * Wait for a variant to load
+     * 
+     * @param Future<Optional<ResolvedSegment>> variant
+     * @return Optional<ResolvedSegment>, empty if the file does not exist
+     */
+    private static Optional<ResolvedSegment> await(
+            Future<Optional<ResolvedSegment>> variant) throws Exception
+    {
+        try
+        {
+            return variant.get();
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            while (cause instanceof ExecutionException
+                    && cause.getCause() != null)
+            {
+                cause = cause.getCause();
+            }
+            throw cause instanceof Exception ? (Exception) cause : ex;
+        }
+    }
+
+    /**
+     * Indicate if a load failed because the file does not exist
+     * 
+     * @param Throwable ex why the load failed
+     * @return boolean
+     */
+    private static boolean isMissing(Throwable ex)
+    {
+        while ((ex instanceof CompletionException
+                || ex instanceof ExecutionException) && ex.getCause() != null)
+        {
+            ex = ex.getCause();
+        }
+        return ex instanceof FileNotFoundException;
+    }
+
+    /**
+     * Get the listing of a directory, reading it again once it expires. Only
+     * web listings are kept, since they cost a request. Local directories and
+     * archives are listed every time, so a segment dropped into them is found
+     * right away.
+     * 
+     * @param Loader loader that can reach the directory
+     * @param String directory
+     * @param long now
+     * @return Set<String> file names, null if the directory can't be listed
+     */
+    private Set<String> getListing(Loader loader, String directory, long now)
+    {
+        Listing listing = listings.get(directory);
+        if (listing == null || listing.expires <= now)
+        {
+            listing = new Listing();
+            Optional<List<String>> names = loader.tryListFiles(directory);
+            listing.names = names.isPresent()
+                    ? new HashSet<String>(names.get())
+                    : null;
+            listing.expires = now + ttlMillis;
+            logger.debug("Listed {}: {}", directory, names.isPresent()
+                    ? names.get().size() + " files"
+                    : "no listing");
+            if (ttlMillis > 0 && loader instanceof WebLoader)
+            {
+                listings.put(directory, listing);
+            }
+        }
+        return listing.names;
+    }
+
+    /**
+     * Remember that a segment was not found
+     * 
+     * @param String missKey
+     * @param long now
+     */
+    private void remember(String missKey, long now)
+    {
+        if (ttlMillis <= 0)
+        {
+            return;
+        }
+        if (misses.size() >= MaxMisses)
+        {
+            misses.values().removeIf(expires -> expires <= now);
+        }
+        misses.put(missKey, now + ttlMillis);
+    }
+}
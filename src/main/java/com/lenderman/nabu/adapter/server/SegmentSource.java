@@ -0,0 +1,114 @@
+package com.lenderman.nabu.adapter.server;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+/**
+ * The file a cached segment was loaded from, along with its modification time
+ * and size at the time. If either one changes, the file has been rebuilt and
+ * the cached segment is stale.
+ */
+public class SegmentSource
+{
+    /**
+     * File the segment was loaded from
+     */
+    private Path file;
+
+    /**
+     * Modification time of the file, in milliseconds
+     */
+    private long lastModified;
+
+    /**
+     * Size of the file, in bytes
+     */
+    private long size;
+
+    /**
+     * Constructor
+     */
+    private SegmentSource(Path file, long lastModified, long size)
+    {
+        this.file = file;
+        this.lastModified = lastModified;
+        this.size = size;
+    }
+
+    /**
+     * Record the current modification time and size of the file
+     * 
+     * @param String path
+     * @return Optional<SegmentSource>, empty if the path is not a local file
+     */
+    public static Optional<SegmentSource> of(String path)
+    {
+        try
+        {
+            Path file = Paths.get(path);
+            if (!Files.isRegularFile(file))
+            {
+                return Optional.empty();
+            }
+            return Optional.of(new SegmentSource(file,
+                    Files.getLastModifiedTime(file).toMillis(),
+                    Files.size(file)));
+        }
+        catch (Exception ex)
+        {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Check that the file has not changed since it was recorded
+     * 
+     * @return boolean
+     */
+    public boolean isCurrent()
+    {
+        try
+        {
+            return Files.getLastModifiedTime(file).toMillis() == lastModified
+                    && Files.size(file) == size;
+        }
+        catch (Exception ex)
+        {
+            // Deleted or unreadable, either way the segment has to go
+            return false;
+        }
+    }
+
+    /**
+     * @return Path
+     */
+    public Path getFile()
+    {
+        return file;
+    }
+}
@@ -23,14 +23,22 @@ package com.lenderman.nabu.adapter.server;
  * SOFTWARE.
  */
 
-import java.util.List;
+import java.io.InputStream;
+import java.io.OutputStream;
 import com.lenderman.nabu.adapter.connection.Connection;
-import com.lenderman.nabu.adapter.model.packet.NabuPacket;
 import com.lenderman.nabu.adapter.stream.InputStreamHolder;
 import com.lenderman.nabu.adapter.stream.OutputStreamHolder;
+import com.lenderman.nabu.adapter.stream.RecordingInputStream;
+import com.lenderman.nabu.adapter.stream.RecordingOutputStream;
+import com.lenderman.nabu.adapter.stream.TrafficRecorder;
 
 public class ServerInputOutputController
 {
+    /**
+     * Size of the buffer that collects responses until the NABU's turn
+     */
+    private static final int OutputBufferSize = 8192;
+
     /**
      * Nabu connection
      */
@@ -46,6 +54,16 @@ public class ServerInputOutputController
      */
     private InputStreamHolder input;
 
+    /**
+     * Recorder of the connection's traffic, null if it is not recorded
+     */
+    private TrafficRecorder recorder;
+
+    /**
+     * Number the recorder knows the connection by
+     */
+    private int recordedConnection;
+
     /**
      * Get the Output Stream
      * 
@@ -71,65 +89,91 @@ public class ServerInputOutputController
      */
     public ServerInputOutputController(Connection connection) throws Exception
     {
-        this.connection = connection;
-        connection.startServer();
-        output = new OutputStreamHolder(connection.getNabuOutputStream());
-        input = new InputStreamHolder(connection.getNabuInputStream());
+        this(connection, null);
     }
 
     /**
-     * Indicate if the server I/O is connected
+     * Constructor for a connection whose traffic is recorded
      * 
-     * @return boolean
+     * @param Connection connection
+     * @param TrafficRecorder recorder null to not record the traffic
      */
-    public boolean isConnected()
+    public ServerInputOutputController(Connection connection,
+            TrafficRecorder recorder) throws Exception
     {
-        return connection.isConnected();
+        this.connection = connection;
+        connection.startServer();
+
+        InputStream inputStream = connection.getNabuInputStream();
+        OutputStream outputStream = connection.getNabuOutputStream();
+        if (recorder != null)
+        {
+            this.recorder = recorder;
+            recordedConnection = recorder
+                    .open(connection.getClass().getSimpleName());
+            inputStream = new RecordingInputStream(inputStream, recorder,
+                    recordedConnection);
+            outputStream = new RecordingOutputStream(outputStream, recorder,
+                    recordedConnection);
+        }
+
+        output = new OutputStreamHolder(outputStream, OutputBufferSize);
+        input = new InputStreamHolder(inputStream);
     }
 
     /**
-     * Close server connections
+     * Constructor for I/O that is not backed by a connection
      */
-    public void closeServerConnections()
+    public ServerInputOutputController(InputStreamHolder input,
+            OutputStreamHolder output)
     {
-        if (this.connection != null && this.connection.isConnected())
-        {
-            this.connection.stopServer();
-        }
+        this.input = input;
+        this.output = output;
     }
 
     /**
-     * Get the requested segment
+     * Indicate if the server I/O is connected
      * 
-     * @return int segment
+     * @return boolean
      */
-    public int getRequestedSegment() throws Exception
+    public boolean isConnected()
     {
-        int b1 = input.readByte();
-        int b2 = input.readByte();
-        int b3 = input.readByte();
-        int segment = b1 + (b2 << 8) + (b3 << 16);
-        return segment;
+        return connection != null && connection.isConnected();
     }
 
     /**
-     * Get the requested packet
+     * Record bytes that were pushed to us by the connection, rather than
+     * read from the input stream
      * 
-     * @return int packet
+     * @param byte[] data
+     * @param int offset
+     * @param int length
      */
-    public int getRequestedPacket() throws Exception
+    public void received(byte[] data, int offset, int length)
     {
-        return input.readByte();
+        if (recorder != null)
+        {
+            recorder.record(TrafficRecorder.Received, recordedConnection,
+                    data, offset, length);
+        }
     }
 
     /**
-     * Send the packet to the nabu
-     * 
-     * @param NabuPacket
+     * Close server connections
      */
-    public void sendPacket(NabuPacket packet) throws Exception
+    public void closeServerConnections()
     {
-        List<Integer> array = packet.getEscapedData();
-        output.writeBytes(array.toArray(new Integer[array.size()]));
+        if (this.connection != null && this.connection.isConnected())
+        {
+            this.connection.stopServer();
+        }
+        synchronized (this)
+        {
+            if (recorder != null)
+            {
+                recorder.close(recordedConnection);
+                recorder = null;
+            }
+        }
     }
 }
@@ -0,0 +1,393 @@
+package com.lenderman.nabu.adapter.server;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.lenderman.nabu.adapter.loader.DataSink;
+import com.lenderman.nabu.adapter.model.packet.NabuPacket;
+import com.lenderman.nabu.adapter.model.packet.NabuSegment;
+
+/**
+ * A compiled program (.nabu) segment that is packetized while it is still
+ * loading. Packet N only needs bytes N * 0x3E1 up to (N + 1) * 0x3E1, so it
+ * can go to the NABU as soon as they are in, while the rest of the file is
+ * still on its way.
+ * 
+ * Whether a packet is the last one depends on the length of the file. When
+ * the loader doesn't know the length up front, the last packet waits until
+ * either one more byte or the end of the file arrives.
+ */
+public class StreamingSegment implements DataSink
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager
+            .getLogger(StreamingSegment.class);
+
+    /**
+     * Segment number
+     */
+    private int segmentNumber;
+
+    /**
+     * Bytes received so far, at the start of the array
+     */
+    private byte[] data = new byte[0];
+
+    /**
+     * Number of bytes received so far
+     */
+    private int received;
+
+    /**
+     * Length of the file, -1 until known
+     */
+    private long length = -1;
+
+    /**
+     * Whether the file started to arrive
+     */
+    private boolean started;
+
+    /**
+     * Whether the whole file arrived
+     */
+    private boolean complete;
+
+    /**
+     * Why the load failed, null if it did not
+     */
+    private Throwable failure;
+
+    /**
+     * The load feeding this segment
+     */
+    private CompletableFuture<byte[]> load;
+
+    /**
+     * Packets built so far
+     */
+    private ConcurrentHashMap<Integer, NabuPacket> packets = new ConcurrentHashMap<Integer, NabuPacket>();
+
+    /**
+     * Constructor
+     * 
+     * @param int segmentNumber
+     */
+    public StreamingSegment(int segmentNumber)
+    {
+        this.segmentNumber = segmentNumber;
+    }
+
+    /**
+     * Follow the load feeding this segment, to know when it ends
+     * 
+     * @param CompletableFuture<byte[]> load
+     */
+    public void setLoad(CompletableFuture<byte[]> load)
+    {
+        this.load = load;
+        load.whenComplete((whole, ex) -> {
+            synchronized (this)
+            {
+                if (ex != null)
+                {
+                    failure = ex;
+                }
+                else
+                {
+                    data = whole;
+                    received = whole.length;
+                    length = whole.length;
+                    started = true;
+                    complete = true;
+                }
+                this.notifyAll();
+            }
+        });
+    }
+
+    /**
+     * @return CompletableFuture<byte[]> the load feeding this segment
+     */
+    public CompletableFuture<byte[]> getLoad()
+    {
+        return load;
+    }
+
+    /**
+     * @return Throwable why the load failed, null if it did not
+     */
+    public synchronized Throwable getFailure()
+    {
+        return failure;
+    }
+
+    /**
+     * Stop the load feeding this segment
+     */
+    public void cancel()
+    {
+        if (load != null)
+        {
+            load.cancel(true);
+        }
+    }
+
+    /**
+     * Wait until the file starts to arrive, or turns out not to exist
+     * 
+     * @return boolean true if the file exists
+     */
+    public synchronized boolean awaitStart() throws InterruptedException
+    {
+        while (!started && failure == null)
+        {
+            this.wait();
+        }
+        return started && (length <= SegmentManager.MaxFileSize);
+    }
+
+    /**
+     * Get the segment, whose packets wait for their bytes as needed
+     * 
+     * @return NabuSegment
+     */
+    public NabuSegment getSegment()
+    {
+        return new NabuSegment(new StreamingPacketList(), segmentNumber, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void start(long length)
+    {
+        if (!started)
+        {
+            this.length = length;
+            if (length > SegmentManager.MaxFileSize)
+            {
+                logger.error("File {} is too large", segmentNumber);
+                this.cancel();
+            }
+            if (length > 0)
+            {
+                data = new byte[(int) Math.min(length,
+                        SegmentManager.MaxFileSize + 1L)];
+            }
+            started = true;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void write(long position, byte[] bytes, int offset,
+            int count)
+    {
+        // Retries and hedges send bytes we may already have
+        long end = position + count;
+        if (complete || position > received || end <= received)
+        {
+            return;
+        }
+        int skip = (int) (received - position);
+        if (end > data.length)
+        {
+            if (end > SegmentManager.MaxFileSize)
+            {
+                failure = new Exception(
+                        "File " + segmentNumber + " is too large");
+                this.cancel();
+                this.notifyAll();
+                return;
+            }
+            data = Arrays.copyOf(data,
+                    (int) Math.min(Math.max(end, 2L * data.length),
+                            SegmentManager.MaxFileSize));
+        }
+        System.arraycopy(bytes, offset + skip, data, received, count - skip);
+        received = (int) end;
+        this.notifyAll();
+    }
+
+    /**
+     * Wait until a packet's bytes are in, and whether it is the last one is
+     * known
+     * 
+     * @param int index packet index
+     * @return int[] offset and length of the packet payload, and 1 if it is
+     *         the last packet
+     */
+    private synchronized int[] awaitPacket(int index)
+            throws InterruptedException, ExecutionException
+    {
+        long offset = (long) index * NabuPacket.PacketDataLength;
+        while (true)
+        {
+            if (failure != null)
+            {
+                throw new ExecutionException(failure);
+            }
+
+            long end = offset + NabuPacket.PacketDataLength;
+            long total = complete ? received : length;
+            if (total >= 0)
+            {
+                // The length is known, just wait for the bytes
+                end = Math.min(end, total);
+                if (offset >= total)
+                {
+                    throw new IndexOutOfBoundsException(
+                            "Packet " + index + " of " + this.packetCount());
+                }
+                if (received >= end)
+                {
+                    return new int[]
+                    { (int) offset, (int) (end - offset),
+                            end == total ? 1 : 0 };
+                }
+            }
+            else if (received > end)
+            {
+                // More follows, so this is not the last packet
+                return new int[]
+                { (int) offset, NabuPacket.PacketDataLength, 0 };
+            }
+            this.wait();
+        }
+    }
+
+    /**
+     * Number of packets, once the length is known
+     * 
+     * @return int
+     */
+    private synchronized int packetCount()
+    {
+        long total = complete ? received : length;
+        return (int) ((total + NabuPacket.PacketDataLength - 1)
+                / NabuPacket.PacketDataLength);
+    }
+
+    /**
+     * Wait until the length is known
+     */
+    private synchronized void awaitLength()
+            throws InterruptedException, ExecutionException
+    {
+        while (!complete && length < 0)
+        {
+            if (failure != null)
+            {
+                throw new ExecutionException(failure);
+            }
+            this.wait();
+        }
+    }
+
+    /**
+     * Packets of the segment, each built once its bytes are in
+     */
+    private class StreamingPacketList extends AbstractList<NabuPacket>
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public NabuPacket get(int index)
+        {
+            NabuPacket packet = packets.get(index);
+            if (packet != null)
+            {
+                return packet;
+            }
+
+            try
+            {
+                int[] range = awaitPacket(index);
+                byte[] snapshot;
+                synchronized (StreamingSegment.this)
+                {
+                    // Bytes already received never change, even if the array
+                    // is replaced by a bigger one
+                    snapshot = data;
+                }
+
+                // Numbered the same as SegmentManager.createPackets
+                packet = new NabuPacket((byte) 0x0,
+                        SegmentManager.createPacket(segmentNumber, (byte) 0x0,
+                                range[0], range[2] == 1, snapshot, range[1]));
+                NabuPacket existing = packets.putIfAbsent(index, packet);
+                return existing != null ? existing : packet;
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            }
+            catch (ExecutionException ex)
+            {
+                throw new IllegalStateException(
+                        "Segment " + segmentNumber + " failed to load",
+                        ex.getCause());
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size()
+        {
+            try
+            {
+                awaitLength();
+                return packetCount();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            }
+            catch (ExecutionException ex)
+            {
+                throw new IllegalStateException(
+                        "Segment " + segmentNumber + " failed to load",
+                        ex.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.lenderman.nabu.adapter.stream;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the fields of NABU requests from a stream through a ring buffer of
+ * its own. Numbers are little-endian and strings are ASCII. Once the buffer
+ * is sized, decoding a number allocates nothing. The stream is only read as
+ * far as it has bytes available, so nothing is lost to read-ahead; bytes
+ * buffered but not decoded yet are still counted by available().
+ */
+public class FramedReader
+{
+    /**
+     * Default size of the ring buffer
+     */
+    private static final int DefaultCapacity = 512;
+
+    /**
+     * Stream the bytes come from, null if the buffer holds every byte there
+     * is
+     */
+    private InputStream stream;
+
+    /**
+     * Ring buffer
+     */
+    private byte[] ring;
+
+    /**
+     * Index of the first buffered byte
+     */
+    private int start;
+
+    /**
+     * Number of buffered bytes
+     */
+    private int count;
+
+    /**
+     * Reusable space for strings, grown when needed
+     */
+    private byte[] scratch;
+
+    /**
+     * Constructor
+     * 
+     * @param InputStream stream
+     */
+    public FramedReader(InputStream stream)
+    {
+        this.stream = stream;
+        this.ring = new byte[DefaultCapacity];
+    }
+
+    /**
+     * Constructor for bytes that are already in memory, which are read in
+     * place
+     * 
+     * @param byte[] data
+     * @param int offset
+     * @param int length
+     */
+    public FramedReader(byte[] data, int offset, int length)
+    {
+        this.ring = data;
+        this.start = offset;
+        this.count = length;
+    }
+
+    /**
+     * Read an unsigned byte
+     * 
+     * @return int
+     */
+    public int readU8() throws IOException
+    {
+        this.fill(1);
+        return this.take();
+    }
+
+    /**
+     * Read an unsigned little-endian short
+     * 
+     * @return int
+     */
+    public int readU16() throws IOException
+    {
+        this.fill(2);
+        int low = this.take();
+        return low | this.take() << 8;
+    }
+
+    /**
+     * Read an unsigned little-endian int
+     * 
+     * @return long
+     */
+    public long readU32() throws IOException
+    {
+        this.fill(4);
+        long value = this.take();
+        value |= this.take() << 8;
+        value |= this.take() << 16;
+        value |= (long) this.take() << 24;
+        return value;
+    }
+
+    /**
+     * Read an unsigned LEB 128 value, as written by the C# BinaryWriter
+     * 
+     * @return int
+     */
+    public int readLeb128() throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7)
+        {
+            int b = this.readU8();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new IOException("LEB 128 value is too long");
+    }
+
+    /**
+     * Read an ASCII string
+     * 
+     * @param int length
+     * @return String
+     */
+    public String readString(int length) throws IOException
+    {
+        if (scratch == null || scratch.length < length)
+        {
+            scratch = new byte[Math.max(64, length)];
+        }
+        this.readFully(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Read an ASCII string prepended with a LEB 128 length
+     * 
+     * @return String
+     */
+    public String readLengthPrefixedString() throws IOException
+    {
+        return this.readString(this.readLeb128());
+    }
+
+    /**
+     * Read exactly the given number of bytes
+     * 
+     * @param byte[] buffer
+     * @param int offset
+     * @param int length
+     */
+    public void readFully(byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        int copied = this.drain(buffer, offset, length);
+
+        // Anything larger than what is buffered goes straight to the caller
+        while (copied < length)
+        {
+            if (stream == null)
+            {
+                throw new EOFException();
+            }
+            int read = stream.read(buffer, offset + copied, length - copied);
+            if (read < 0)
+            {
+                throw new EOFException();
+            }
+            copied += read;
+        }
+    }
+
+    /**
+     * Read a single byte
+     * 
+     * @return the byte, or -1 at the end of the stream
+     */
+    public int read() throws IOException
+    {
+        try
+        {
+            return this.readU8();
+        }
+        catch (EOFException ex)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Read whatever is available, waiting for at least one byte
+     * 
+     * @param byte[] buffer
+     * @param int offset
+     * @param int length
+     * @return number of bytes read, or -1 at the end of the stream
+     */
+    public int readAvailable(byte[] buffer, int offset, int length)
+            throws IOException
+    {
+        if (count > 0)
+        {
+            return this.drain(buffer, offset, length);
+        }
+        if (stream == null)
+        {
+            return -1;
+        }
+        return stream.read(buffer, offset, length);
+    }
+
+    /**
+     * @return int number of bytes that can be read without waiting
+     */
+    public int available() throws IOException
+    {
+        return count + (stream == null ? 0 : stream.available());
+    }
+
+    /**
+     * Throw away the buffered bytes, for when the stream goes back to an
+     * earlier position
+     */
+    public void discard()
+    {
+        start = 0;
+        count = 0;
+    }
+
+    /**
+     * Make sure at least the given number of bytes are buffered, reading no
+     * more than the stream has available past them
+     * 
+     * @param int needed
+     */
+    private void fill(int needed) throws IOException
+    {
+        if (count == 0 && stream != null)
+        {
+            start = 0;
+        }
+        while (count < needed)
+        {
+            if (stream == null)
+            {
+                throw new EOFException();
+            }
+            int tail = (start + count) % ring.length;
+            int free = tail >= start ? ring.length - tail : start - tail;
+            int read = stream.read(ring, tail,
+                    Math.min(free, Math.max(needed - count, stream.available())));
+            if (read < 0)
+            {
+                throw new EOFException();
+            }
+            count += read;
+        }
+    }
+
+    /**
+     * Take the next buffered byte
+     * 
+     * @return int
+     */
+    private int take()
+    {
+        int b = ring[start] & 0xFF;
+        start = (start + 1) % ring.length;
+        count--;
+        return b;
+    }
+
+    /**
+     * Copy buffered bytes out
+     * 
+     * @param byte[] buffer
+     * @param int offset
+     * @param int length most bytes to copy
+     * @return number of bytes copied
+     */
+    private int drain(byte[] buffer, int offset, int length)
+    {
+        int copied = 0;
+        while (copied < length && count > 0)
+        {
+            int chunk = Math.min(length - copied,
+                    Math.min(count, ring.length - start));
+            System.arraycopy(ring, start, buffer, offset + copied, chunk);
+            start = (start + chunk) % ring.length;
+            count -= chunk;
+            copied += chunk;
+        }
+        return copied;
+    }
+}
@@ -23,24 +23,38 @@ package com.lenderman.nabu.adapter.stream;
  */
 
 import java.io.InputStream;
-import com.lenderman.nabu.adapter.utilities.StreamUtils;
 
 /**
- * Wrapper class to encapsulate input streams and how we use them with NABU
+ * Wrapper class to encapsulate input streams and how we use them with NABU.
+ * Fields are decoded by a FramedReader of its own, so reading a request does
+ * not create garbage for every field.
  */
 public class InputStreamHolder
 {
     /**
-     * Wrapped input stream
+     * Reader over the wrapped input stream
      */
-    private InputStream stream;
+    private FramedReader reader;
 
     /**
      * Constructor
      */
     public InputStreamHolder(InputStream stream)
     {
-        this.stream = stream;
+        this.reader = new FramedReader(stream);
+    }
+
+    /**
+     * Constructor for bytes that are already in memory, which are read in
+     * place
+     * 
+     * @param byte[] data
+     * @param int offset
+     * @param int length
+     */
+    public InputStreamHolder(byte[] data, int offset, int length)
+    {
+        this.reader = new FramedReader(data, offset, length);
     }
 
     /**
@@ -50,17 +64,29 @@ public class InputStreamHolder
      */
     public long readInt() throws Exception
     {
-        return StreamUtils.readInt(stream);
+        return reader.readU32();
+    }
+
+    /**
+     * Read whatever is available into the buffer, waiting for at least one
+     * byte
+     * 
+     * @param byte[] buffer
+     * @return number of bytes read, or -1 at the end of the stream
+     */
+    public int readAvailable(byte[] buffer) throws Exception
+    {
+        return reader.readAvailable(buffer, 0, buffer.length);
     }
 
     /**
      * Read a single byte from the stream
      * 
-     * @return read byte
+     * @return read byte, or -1 at the end of the stream
      */
     public int readByte() throws Exception
     {
-        return StreamUtils.readByte(stream);
+        return reader.read();
     }
 
     /**
@@ -90,7 +116,7 @@ public class InputStreamHolder
      */
     public int readShort() throws Exception
     {
-        return StreamUtils.readShort(stream);
+        return reader.readU16();
     }
 
     /**
@@ -101,7 +127,17 @@ public class InputStreamHolder
      */
     public String readString(int length) throws Exception
     {
-        return StreamUtils.readString(stream, length);
+        return reader.readString(length);
+    }
+
+    /**
+     * Read a string from the stream, prepended with a LEB 128 length
+     * 
+     * @return String
+     */
+    public String readString() throws Exception
+    {
+        return reader.readLengthPrefixedString();
     }
 
     /**
@@ -112,6 +148,25 @@ public class InputStreamHolder
      */
     public byte[] readBytes(int length) throws Exception
     {
-        return StreamUtils.readBytes(stream, length);
+        byte[] bytes = new byte[length];
+        reader.readFully(bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * @return int number of bytes that can be read without waiting
+     */
+    public int available() throws Exception
+    {
+        return reader.available();
+    }
+
+    /**
+     * Throw away bytes read ahead, for when the wrapped stream goes back to an
+     * earlier position
+     */
+    public void discard()
+    {
+        reader.discard();
     }
 }
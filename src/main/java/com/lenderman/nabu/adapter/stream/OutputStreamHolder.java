@@ -22,7 +22,11 @@ package com.lenderman.nabu.adapter.stream;
  * SOFTWARE.
  */
 
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import com.lenderman.nabu.adapter.utilities.StreamUtils;
 
 /**
@@ -36,19 +40,76 @@ public class OutputStreamHolder
     protected OutputStream stream;
 
     /**
-     * Constructor
+     * Whether writes are collected until flush is called, rather than sent
+     * right away
+     */
+    private boolean coalescing;
+
+    /**
+     * Whether anything has been written since the last flush
+     */
+    private boolean pending;
+
+    /**
+     * Number of writes
+     */
+    private volatile long writes;
+
+    /**
+     * Number of times written data was flushed to the stream
+     */
+    private volatile long flushes;
+
+    /**
+     * Number of bytes passed on to the wrapped stream, only counted for a
+     * holder that collects writes
+     */
+    private volatile long bytesSent;
+
+    /**
+     * Constructor for a holder that sends every write right away
      */
     public OutputStreamHolder(OutputStream stream)
     {
         this.stream = stream;
     }
 
+    /**
+     * Constructor for a holder that collects writes in one reusable buffer
+     * and only sends them when flushed
+     * 
+     * @param OutputStream stream
+     * @param int bufferSize
+     */
+    public OutputStreamHolder(OutputStream stream, int bufferSize)
+    {
+        OutputStream counted = new FilterOutputStream(stream)
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                out.write(b);
+                bytesSent++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                out.write(b, off, len);
+                bytesSent += len;
+            }
+        };
+        this.stream = new BufferedOutputStream(counted, bufferSize);
+        this.coalescing = true;
+    }
+
     /**
      * Write the byte array to the stream
      */
     public void writeBytes(Integer... bytes) throws Exception
     {
         StreamUtils.writeBytes(stream, bytes);
+        this.written();
     }
 
     /**
@@ -57,6 +118,17 @@ public class OutputStreamHolder
     public void writeBytes(byte[] bytes) throws Exception
     {
         StreamUtils.writeBytes(stream, bytes);
+        this.written();
+    }
+
+    /**
+     * Write the remaining bytes of the buffer to the stream, without moving
+     * its position
+     */
+    public void writeBytes(ByteBuffer bytes) throws Exception
+    {
+        StreamUtils.writeBytes(stream, bytes);
+        this.written();
     }
 
     /**
@@ -67,6 +139,7 @@ public class OutputStreamHolder
     public void writeShort(Integer shortVal) throws Exception
     {
         StreamUtils.writeShort(stream, shortVal);
+        this.written();
     }
 
     /**
@@ -77,6 +150,7 @@ public class OutputStreamHolder
     public void writeInt(Long intVal) throws Exception
     {
         StreamUtils.writeInt(stream, intVal);
+        this.written();
     }
 
     /**
@@ -87,5 +161,58 @@ public class OutputStreamHolder
     public void writeString(String value) throws Exception
     {
         StreamUtils.writeString(stream, value);
+        this.written();
+    }
+
+    /**
+     * Send everything written since the last flush. Call this before waiting
+     * for the NABU to answer.
+     */
+    public void flush() throws Exception
+    {
+        if (pending)
+        {
+            pending = false;
+            flushes++;
+            stream.flush();
+        }
+    }
+
+    /**
+     * @return long number of writes
+     */
+    public long getWrites()
+    {
+        return writes;
+    }
+
+    /**
+     * @return long number of times written data was flushed to the stream
+     */
+    public long getFlushes()
+    {
+        return flushes;
+    }
+
+    /**
+     * @return long number of bytes passed on to the wrapped stream, only
+     *         counted for a holder that collects writes
+     */
+    public long getBytesSent()
+    {
+        return bytesSent;
+    }
+
+    /**
+     * Count a write, and send it unless writes are being collected
+     */
+    private void written() throws Exception
+    {
+        writes++;
+        pending = true;
+        if (!coalescing)
+        {
+            this.flush();
+        }
     }
 }
@@ -0,0 +1,101 @@
+package com.lenderman.nabu.adapter.stream;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that hands every byte read from a NABU to a TrafficRecorder
+ */
+public class RecordingInputStream extends FilterInputStream
+{
+    /**
+     * Recorder the bytes go to
+     */
+    private TrafficRecorder recorder;
+
+    /**
+     * Connection the bytes are recorded under
+     */
+    private int connection;
+
+    /**
+     * Constructor
+     * 
+     * @param InputStream stream
+     * @param TrafficRecorder recorder
+     * @param int connection
+     */
+    public RecordingInputStream(InputStream stream, TrafficRecorder recorder,
+            int connection)
+    {
+        super(stream);
+        this.recorder = recorder;
+        this.connection = connection;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException
+    {
+        int b = in.read();
+        if (b >= 0)
+        {
+            recorder.record(TrafficRecorder.Received, connection, new byte[]
+            { (byte) b }, 0, 1);
+        }
+        return b;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        int count = in.read(b, off, len);
+        if (count > 0)
+        {
+            recorder.record(TrafficRecorder.Received, connection, b, off,
+                    count);
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long skip(long n) throws IOException
+    {
+        // Skipped bytes would be missing from the recording, so read them
+        byte[] buffer = new byte[(int) Math.min(n, 512)];
+        int count = this.read(buffer, 0, buffer.length);
+        return Math.max(count, 0);
+    }
+}
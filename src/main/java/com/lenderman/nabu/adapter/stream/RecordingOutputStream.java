@@ -0,0 +1,80 @@
+package com.lenderman.nabu.adapter.stream;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that hands every byte written to a NABU to a TrafficRecorder
+ */
+public class RecordingOutputStream extends FilterOutputStream
+{
+    /**
+     * Recorder the bytes go to
+     */
+    private TrafficRecorder recorder;
+
+    /**
+     * Connection the bytes are recorded under
+     */
+    private int connection;
+
+    /**
+     * Constructor
+     * 
+     * @param OutputStream stream
+     * @param TrafficRecorder recorder
+     * @param int connection
+     */
+    public RecordingOutputStream(OutputStream stream, TrafficRecorder recorder,
+            int connection)
+    {
+        super(stream);
+        this.recorder = recorder;
+        this.connection = connection;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int b) throws IOException
+    {
+        out.write(b);
+        recorder.record(TrafficRecorder.Sent, connection, new byte[]
+        { (byte) b }, 0, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        out.write(b, off, len);
+        recorder.record(TrafficRecorder.Sent, connection, b, off, len);
+    }
+}
@@ -0,0 +1,128 @@
+package com.lenderman.nabu.adapter.stream;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Holds the bytes of a request that is still arriving from the NABU, so that
+ * it can be parsed again from the start each time more bytes show up. Reading
+ * past the end throws an IncompleteRequestException rather than blocking.
+ */
+public class RequestBuffer extends InputStream
+{
+    /**
+     * Request bytes
+     */
+    private byte[] buffer = new byte[256];
+
+    /**
+     * Number of request bytes held
+     */
+    private int count;
+
+    /**
+     * Read position
+     */
+    private int position;
+
+    /**
+     * Add bytes to the end of the request
+     * 
+     * @param byte[] data
+     * @param int offset
+     * @param int length
+     */
+    public void append(byte[] data, int offset, int length)
+    {
+        if (count + length > buffer.length)
+        {
+            byte[] larger = new byte[Math.max(buffer.length * 2,
+                    count + length)];
+            System.arraycopy(buffer, 0, larger, 0, count);
+            buffer = larger;
+        }
+        System.arraycopy(data, offset, buffer, count, length);
+        count += length;
+    }
+
+    /**
+     * Go back to the start of the request
+     */
+    public void rewind()
+    {
+        position = 0;
+    }
+
+    /**
+     * Throw away the request
+     */
+    public void clear()
+    {
+        count = 0;
+        position = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int available()
+    {
+        return count - position;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException
+    {
+        if (position >= count)
+        {
+            throw new IncompleteRequestException();
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (position >= count)
+        {
+            throw new IncompleteRequestException();
+        }
+        int length = Math.min(len, count - position);
+        System.arraycopy(buffer, position, b, off, length);
+        position += length;
+        return length;
+    }
+}
@@ -0,0 +1,500 @@
+package com.lenderman.nabu.adapter.stream;
+
+/*
+ * Copyright(c) 2023 "RetroTech" Chris Lenderman
+ * Copyright(c) 2022 NabuNetwork.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Records every byte that goes over NABU connections, with nanosecond
+ * timestamps, into append-only binary logs for replaying boots and CP/M
+ * sessions later.
+ * 
+ * Bytes are copied into a queue and written out by a thread of the
+ * recorder's own, so recording never holds up a NABU. If the writer falls
+ * behind and the queued bytes reach their budget, records are dropped and
+ * counted rather than waited for. What is queued when the process exits is
+ * written out before the log is closed. Logs are rotated once they reach
+ * their share of the size budget, and the oldest are deleted so the
+ * directory stays within it.
+ * 
+ * Each log starts with the ASCII magic NABUWIRE, a version byte, and the
+ * time the recorder started as little-endian epoch milliseconds. Records
+ * follow, each a kind byte, then unsigned LEB 128 connection number,
+ * zigzag LEB 128 nanoseconds since the previous record in the log (or since
+ * the recorder started, for the first), unsigned LEB 128 length, and that
+ * many bytes.
+ */
+public class TrafficRecorder
+{
+    /**
+     * Class Logger
+     */
+    private static final Logger logger = LogManager
+            .getLogger(TrafficRecorder.class);
+
+    /**
+     * Record of a connection opening, holding a description of it
+     */
+    public static final int Opened = 0;
+
+    /**
+     * Record of bytes received from a NABU
+     */
+    public static final int Received = 1;
+
+    /**
+     * Record of bytes sent to a NABU
+     */
+    public static final int Sent = 2;
+
+    /**
+     * Record of a connection closing, holding no bytes
+     */
+    public static final int Closed = 3;
+
+    /**
+     * Start of every log
+     */
+    private static final byte[] Magic = "NABUWIRE"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Version of the log format
+     */
+    private static final int Version = 1;
+
+    /**
+     * Number of logs the size budget is shared between
+     */
+    private static final int Logs = 8;
+
+    /**
+     * Most bytes of records waiting to be written before new ones are dropped
+     */
+    private static final long QueueBytes = 16L * 1024L * 1024L;
+
+    /**
+     * Bytes a queued record takes beyond its data, roughly, so that a flood
+     * of single byte records is bounded too
+     */
+    private static final int RecordOverhead = 64;
+
+    /**
+     * Milliseconds to wait for the queue to be written out when the process
+     * exits
+     */
+    private static final long StopMillis = 5000;
+
+    /**
+     * A record waiting to be written
+     */
+    private static class Record
+    {
+        /**
+         * Kind of record
+         */
+        private int kind;
+
+        /**
+         * Connection the record belongs to
+         */
+        private int connection;
+
+        /**
+         * When the record was made, from System.nanoTime()
+         */
+        private long nanos;
+
+        /**
+         * Bytes of the record
+         */
+        private byte[] data;
+    }
+
+    /**
+     * Directory the logs are written to
+     */
+    private File directory;
+
+    /**
+     * Size a log may grow to before the next one is started
+     */
+    private long logSize;
+
+    /**
+     * When the recorder started, in epoch milliseconds
+     */
+    private long startMillis = System.currentTimeMillis();
+
+    /**
+     * When the recorder started, from System.nanoTime()
+     */
+    private long startNanos = System.nanoTime();
+
+    /**
+     * Records waiting to be written
+     */
+    private BlockingQueue<Record> records = new LinkedBlockingQueue<Record>();
+
+    /**
+     * Bytes of records waiting to be written, counting their overhead
+     */
+    private AtomicLong queued = new AtomicLong();
+
+    /**
+     * Last connection number handed out
+     */
+    private AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * Records dropped because the queue was over its budget
+     */
+    private LongAdder dropped = new LongAdder();
+
+    /**
+     * Dropped records already reported, only touched by the writer
+     */
+    private long droppedReported;
+
+    /**
+     * Whether writing failed, after which nothing more is recorded
+     */
+    private volatile boolean failed;
+
+    /**
+     * Whether the process is exiting, after which nothing more is recorded
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Thread writing the records out
+     */
+    private Thread writer;
+
+    /**
+     * Log being written, only touched by the writer
+     */
+    private OutputStream log;
+
+    /**
+     * Bytes written to the current log, only touched by the writer
+     */
+    private long logWritten;
+
+    /**
+     * Number of logs started, only touched by the writer
+     */
+    private int logCount;
+
+    /**
+     * Time of the previous record in the current log, only touched by the
+     * writer
+     */
+    private long lastNanos;
+
+    /**
+     * Encodes record headers, only touched by the writer
+     */
+    private byte[] header = new byte[32];
+
+    /**
+     * Constructor
+     * 
+     * @param String directory where to write the logs
+     * @param long maxBytes most bytes all logs may take together
+     */
+    public TrafficRecorder(String directory, long maxBytes)
+    {
+        this.directory = new File(directory);
+        this.logSize = Math.max(1, maxBytes / Logs);
+    }
+
+    /**
+     * Start the writer
+     */
+    public void start() throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Could not create " + directory);
+        }
+
+        writer = new Thread(this::run, "Traffic recorder");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+        logger.info("Recording NABU traffic to {}", directory);
+    }
+
+    /**
+     * Record a connection opening
+     * 
+     * @param String description of the connection
+     * @return int number the connection's records are made under
+     */
+    public int open(String description)
+    {
+        int connection = connections.incrementAndGet();
+        byte[] data = description.getBytes(StandardCharsets.UTF_8);
+        this.record(Opened, connection, data, 0, data.length);
+        return connection;
+    }
+
+    /**
+     * Record a connection closing
+     * 
+     * @param int connection
+     */
+    public void close(int connection)
+    {
+        this.record(Closed, connection, new byte[0], 0, 0);
+    }
+
+    /**
+     * Record bytes that went over a connection, never waiting on the writer
+     * 
+     * @param int kind Received or Sent
+     * @param int connection
+     * @param byte[] data
+     * @param int offset
+     * @param int length
+     */
+    public void record(int kind, int connection, byte[] data, int offset,
+            int length)
+    {
+        if (failed || stopped)
+        {
+            return;
+        }
+
+        // Claim room in the budget before copying anything
+        long cost = length + RecordOverhead;
+        if (queued.addAndGet(cost) > QueueBytes)
+        {
+            queued.addAndGet(-cost);
+            dropped.increment();
+            return;
+        }
+
+        Record record = new Record();
+        record.kind = kind;
+        record.connection = connection;
+        record.nanos = System.nanoTime();
+        record.data = Arrays.copyOfRange(data, offset, offset + length);
+        records.offer(record);
+    }
+
+    /**
+     * Have the writer write out the queued records and close the log, waiting
+     * a while for it to finish
+     */
+    private void stop()
+    {
+        stopped = true;
+        writer.interrupt();
+        try
+        {
+            writer.join(StopMillis);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write records as they come, sending them to disk whenever the queue
+     * runs dry, until the process exits
+     */
+    private void run()
+    {
+        try
+        {
+            try
+            {
+                while (true)
+                {
+                    Record record = records.poll();
+                    if (record == null)
+                    {
+                        if (log != null)
+                        {
+                            log.flush();
+                        }
+                        this.reportDropped();
+                        record = records.take();
+                    }
+                    this.write(record);
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                // Exiting, write out what is already queued
+                Record record;
+                while ((record = records.poll()) != null)
+                {
+                    this.write(record);
+                }
+                this.reportDropped();
+            }
+            finally
+            {
+                if (log != null)
+                {
+                    log.close();
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            logger.error("Stopped recording NABU traffic", ex);
+            failed = true;
+            records.clear();
+        }
+    }
+
+    /**
+     * Write a record, starting the next log first if this one is full
+     * 
+     * @param Record record
+     */
+    private void write(Record record) throws IOException
+    {
+        queued.addAndGet(-(record.data.length + RecordOverhead));
+        if (log == null || logWritten >= logSize)
+        {
+            this.rotate();
+        }
+
+        long delta = record.nanos - lastNanos;
+        lastNanos = record.nanos;
+
+        header[0] = (byte) record.kind;
+        int length = 1;
+        length = putVarLong(header, length, record.connection);
+        length = putVarLong(header, length, (delta << 1) ^ (delta >> 63));
+        length = putVarLong(header, length, record.data.length);
+
+        log.write(header, 0, length);
+        log.write(record.data);
+        logWritten += length + record.data.length;
+    }
+
+    /**
+     * Close the current log, start the next one, and delete the oldest logs
+     * beyond the size budget
+     */
+    private void rotate() throws IOException
+    {
+        if (log != null)
+        {
+            log.close();
+        }
+
+        String name = String.format("traffic-%s-%06d.wire",
+                new SimpleDateFormat("yyyyMMdd-HHmmss")
+                        .format(new Date(startMillis)),
+                ++logCount);
+        log = new BufferedOutputStream(
+                new FileOutputStream(new File(directory, name)), 65536);
+        logWritten = 0;
+        lastNanos = startNanos;
+
+        byte[] start = new byte[Magic.length + 9];
+        System.arraycopy(Magic, 0, start, 0, Magic.length);
+        start[Magic.length] = Version;
+        for (int i = 0; i < 8; i++)
+        {
+            start[Magic.length + 1 + i] = (byte) (startMillis >>> (8 * i));
+        }
+        log.write(start);
+        logWritten += start.length;
+
+        // Names start with when the recorder started, so they sort oldest
+        // first
+        File[] logs = directory.listFiles((dir, file) -> file
+                .startsWith("traffic-") && file.endsWith(".wire"));
+        if (logs != null && logs.length > Logs)
+        {
+            Arrays.sort(logs);
+            for (int i = 0; i < logs.length - Logs; i++)
+            {
+                if (!logs[i].delete())
+                {
+                    logger.warn("Could not delete old traffic log {}",
+                            logs[i]);
+                }
+            }
+        }
+        logger.debug("Recording NABU traffic to {}", name);
+    }
+
+    /**
+     * Log how many records were dropped since the last report, if any
+     */
+    private void reportDropped()
+    {
+        long total = dropped.sum();
+        if (total > droppedReported)
+        {
+            logger.warn("Traffic recorder fell behind, dropped {} records",
+                    total - droppedReported);
+            droppedReported = total;
+        }
+    }
+
+    /**
+     * Encode an unsigned LEB 128 value
+     * 
+     * @param byte[] buffer
+     * @param int offset where to put it
+     * @param long value
+     * @return int offset after it
+     */
+    private static int putVarLong(byte[] buffer, int offset, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+}
@@ -23,8 +23,18 @@ package com.lenderman.nabu.adapter.utilities;
  * SOFTWARE.
  */
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
+/**
+ * CRC calculations for cycle packets and NHACP frames.
+ * 
+ * Cycle CRCs can be calculated in one go, or incrementally with
+ * startCycleCRC, updateCycleCRC and finishCycleCRC so that pieces of a packet
+ * can be checksummed where they lie. Long runs of data are processed eight
+ * bytes at a time (slice-by-8). NHACP CRCs can likewise be built up with
+ * startNhacpCRC and updateNhacpCRC as a frame is written.
+ */
 public class CRC
 {
     /**
@@ -59,6 +69,13 @@ public class CRC
             44955, 49082, 36825, 40952, 28183, 32310, 20053, 24180, 11923,
             16050, 3793, 7920 };
 
+    /**
+     * Slice-by-8 tables for the Cycle CRC. Entry k of a table is the CRC of a
+     * byte followed by k zero bytes, so eight bytes can be folded in with
+     * eight lookups and no dependency between them.
+     */
+    private static final int[][] cycleCrcSliceTables = createSliceTables();
+
     /**
      * NHACP CRC calculation support table
      */
@@ -107,6 +124,150 @@ public class CRC
         return crcArray;
     }
 
+    /**
+     * Calculate the Cycle CRC of part of a byte array
+     *
+     * @param bytes data to calculate the CRC
+     * @param offset where the data starts
+     * @param length length of the data
+     * @return Upper and lower bytes for use with nabu packets
+     */
+    public static byte[] calculateCycleCRC(byte[] bytes, int offset,
+            int length)
+    {
+        return finishCycleCRC(
+                updateCycleCRC(startCycleCRC(), bytes, offset, length));
+    }
+
+    /**
+     * Calculate the Cycle CRC of the remaining bytes of the buffer, without
+     * moving its position
+     *
+     * @param buffer data to calculate the CRC
+     * @return Upper and lower bytes for use with nabu packets
+     */
+    public static byte[] calculateCycleCRC(ByteBuffer buffer)
+    {
+        return finishCycleCRC(updateCycleCRC(startCycleCRC(), buffer));
+    }
+
+    /**
+     * Start an incremental Cycle CRC calculation
+     *
+     * @return CRC state to pass to updateCycleCRC
+     */
+    public static int startCycleCRC()
+    {
+        return 0xFFFF;
+    }
+
+    /**
+     * Add part of a byte array to an incremental Cycle CRC calculation
+     *
+     * @param crc CRC state from startCycleCRC or a previous update
+     * @param bytes data to add
+     * @param offset where the data starts
+     * @param length length of the data
+     * @return CRC state
+     */
+    public static int updateCycleCRC(int crc, byte[] bytes, int offset,
+            int length)
+    {
+        int[] t0 = cycleCrcSliceTables[0];
+        int[] t1 = cycleCrcSliceTables[1];
+        int[] t2 = cycleCrcSliceTables[2];
+        int[] t3 = cycleCrcSliceTables[3];
+        int[] t4 = cycleCrcSliceTables[4];
+        int[] t5 = cycleCrcSliceTables[5];
+        int[] t6 = cycleCrcSliceTables[6];
+        int[] t7 = cycleCrcSliceTables[7];
+
+        int index = offset;
+        int end = offset + length;
+
+        // The 16 bit CRC only overlaps the first two bytes of each slice
+        while (end - index >= 8)
+        {
+            crc = t7[((crc >> 8) ^ bytes[index]) & 0xFF]
+                    ^ t6[(crc ^ bytes[index + 1]) & 0xFF]
+                    ^ t5[bytes[index + 2] & 0xFF] ^ t4[bytes[index + 3] & 0xFF]
+                    ^ t3[bytes[index + 4] & 0xFF] ^ t2[bytes[index + 5] & 0xFF]
+                    ^ t1[bytes[index + 6] & 0xFF] ^ t0[bytes[index + 7] & 0xFF];
+            index += 8;
+        }
+
+        while (index < end)
+        {
+            crc = ((crc << 8) ^ t0[((crc >> 8) ^ bytes[index]) & 0xFF])
+                    & 0xFFFF;
+            index++;
+        }
+        return crc;
+    }
+
+    /**
+     * Add the remaining bytes of the buffer to an incremental Cycle CRC
+     * calculation, without moving its position
+     *
+     * @param crc CRC state from startCycleCRC or a previous update
+     * @param buffer data to add
+     * @return CRC state
+     */
+    public static int updateCycleCRC(int crc, ByteBuffer buffer)
+    {
+        if (buffer.hasArray())
+        {
+            return updateCycleCRC(crc, buffer.array(),
+                    buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        }
+
+        for (int index = buffer.position(); index < buffer.limit(); index++)
+        {
+            crc = ((crc << 8)
+                    ^ cycleCrcTable[((crc >> 8) ^ buffer.get(index)) & 0xFF])
+                    & 0xFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * Finish an incremental Cycle CRC calculation
+     *
+     * @param crc CRC state from startCycleCRC or an update
+     * @return Upper and lower bytes for use with nabu packets
+     */
+    public static byte[] finishCycleCRC(int crc)
+    {
+        crc ^= 0xFFFF;
+        byte[] crcArray = new byte[2];
+        crcArray[0] = (byte) ((crc >> 8) & 0xFF);
+        crcArray[1] = (byte) (crc & 0xFF);
+        return crcArray;
+    }
+
+    /**
+     * Build the slice-by-8 tables from the Cycle CRC table
+     *
+     * @return int[][]
+     */
+    private static int[][] createSliceTables()
+    {
+        int[][] tables = new int[8][256];
+        tables[0] = cycleCrcTable.clone();
+        for (int slice = 1; slice < tables.length; slice++)
+        {
+            for (int b = 0; b < 256; b++)
+            {
+                // Feed a zero byte through the previous table's CRC
+                int crc = tables[slice - 1][b];
+                tables[slice][b] = ((crc << 8) ^ cycleCrcTable[(crc >> 8)
+                        & 0xFF]) & 0xFFFF;
+            }
+        }
+        return tables;
+    }
+
     /**
      * Calculate the CRC-8/CDMA2000 for NHACP
      * 
@@ -115,14 +276,50 @@ public class CRC
      */
     public static int calculateNhacpCRC(byte[] bytes)
     {
-        Integer seed = 0xFF;
+        return calculateNhacpCRC(bytes, 0, bytes.length);
+    }
 
-        for (byte b : bytes)
+    /**
+     * Calculate the CRC-8/CDMA2000 for NHACP over part of a byte array
+     * 
+     * @param bytes data to calculate the CRC
+     * @param offset where the data starts
+     * @param length length of the data
+     * @return int CRC value
+     */
+    public static int calculateNhacpCRC(byte[] bytes, int offset, int length)
+    {
+        return updateNhacpCRC(startNhacpCRC(), bytes, offset, length);
+    }
+
+    /**
+     * Start an incremental NHACP CRC calculation
+     * 
+     * @return CRC state to pass to updateNhacpCRC, which is also the CRC of no
+     *         data
+     */
+    public static int startNhacpCRC()
+    {
+        return 0xFF;
+    }
+
+    /**
+     * Add part of a byte array to an incremental NHACP CRC calculation
+     * 
+     * @param crc CRC state from startNhacpCRC or a previous update
+     * @param bytes data to add
+     * @param offset where the data starts
+     * @param length length of the data
+     * @return CRC state, which is also the CRC of the data so far
+     */
+    public static int updateNhacpCRC(int crc, byte[] bytes, int offset,
+            int length)
+    {
+        for (int i = offset; i < offset + length; i++)
         {
-            int index = (seed ^ b) & 0xFF;
-            seed = nhacpCrcTable[index] ^ (seed >> 8);
+            int index = (crc ^ bytes[i]) & 0xFF;
+            crc = nhacpCrcTable[index] ^ (crc >> 8);
         }
-
-        return seed;
+        return crc;
     }
 }
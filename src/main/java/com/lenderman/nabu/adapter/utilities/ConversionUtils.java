@@ -22,10 +22,6 @@ package com.lenderman.nabu.adapter.utilities;
  * SOFTWARE.
  */
 
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-
 public class ConversionUtils
 {
     /**
@@ -65,16 +61,4 @@ public class ConversionUtils
     {
         return (int) value.byteValue();
     }
-
-    /**
-     * Convert a byte Array to a Byte List
-     * 
-     * @param byte[] byteArray
-     * @return List<Byte>
-     */
-    public static List<Byte> convertToByteList(byte[] byteArray)
-    {
-        return IntStream.range(0, byteArray.length).mapToObj(i -> byteArray[i])
-                .collect(Collectors.toList());
-    }
 }
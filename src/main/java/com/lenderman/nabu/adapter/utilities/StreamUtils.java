@@ -22,13 +22,8 @@ package com.lenderman.nabu.adapter.utilities;
  * SOFTWARE.
  */
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -56,65 +51,78 @@ public class StreamUtils
     }
 
     /**
-     * Write the byte array to the stream
+     * Write the byte array to the stream, without flushing it
      */
     public static void writeBytes(OutputStream stream, Integer... bytes)
             throws Exception
     {
-        BufferedOutputStream bos = new BufferedOutputStream(stream);
-        for (Integer i : bytes)
+        byte[] buffer = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++)
         {
-            bos.write(i.byteValue());
+            buffer[i] = bytes[i].byteValue();
         }
-        bos.flush();
+        stream.write(buffer, 0, buffer.length);
     }
 
     /**
-     * Write the byte array to the stream
+     * Write the byte array to the stream, without flushing it
      */
     public static void writeBytes(OutputStream stream, byte[] bytes)
             throws Exception
     {
-        BufferedOutputStream bos = new BufferedOutputStream(stream);
-        for (byte i : bytes)
+        stream.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write the remaining bytes of the buffer to the stream, without moving
+     * its position or flushing the stream
+     */
+    public static void writeBytes(OutputStream stream, ByteBuffer bytes)
+            throws Exception
+    {
+        if (bytes.hasArray())
         {
-            bos.write(i);
+            stream.write(bytes.array(), bytes.arrayOffset() + bytes.position(),
+                    bytes.remaining());
+        }
+        else
+        {
+            // Direct or mapped, it has to come onto the heap to be written
+            byte[] copy = new byte[bytes.remaining()];
+            bytes.duplicate().get(copy);
+            stream.write(copy, 0, copy.length);
         }
-        bos.flush();
     }
 
     /**
-     * Write the short value to the stream
+     * Write the short value to the stream, without flushing it
      * 
      * @param Integer shortVal
      */
     public static void writeShort(OutputStream stream, Integer shortVal)
             throws Exception
     {
-        BufferedOutputStream bos = new BufferedOutputStream(stream);
-        bos.write((int) (shortVal & 0xff));
-        bos.write((int) ((shortVal >> 8) & 0xff));
-        bos.flush();
+        stream.write(new byte[]
+        { (byte) (shortVal & 0xff), (byte) ((shortVal >> 8) & 0xff) }, 0, 2);
     }
 
     /**
-     * Write the int value to the stream
+     * Write the int value to the stream, without flushing it
      * 
      * @param Integer intVal
      */
     public static void writeInt(OutputStream stream, Long intVal)
             throws Exception
     {
-        BufferedOutputStream bos = new BufferedOutputStream(stream);
-        bos.write((int) (intVal & 0xff));
-        bos.write((int) ((intVal >> 8) & 0xff));
-        bos.write((int) ((intVal >> 16) & 0xff));
-        bos.write((int) ((intVal >> 24) & 0xff));
-        bos.flush();
+        stream.write(new byte[]
+        { (byte) (intVal & 0xff), (byte) ((intVal >> 8) & 0xff),
+                (byte) ((intVal >> 16) & 0xff), (byte) ((intVal >> 24) & 0xff) },
+                0, 4);
     }
 
     /**
-     * Write the string to the stream, prepended with a LEB 128 length
+     * Write the string to the stream, prepended with a LEB 128 length, without
+     * flushing it
      * 
      * @param String value
      */
@@ -122,95 +130,14 @@ public class StreamUtils
             throws Exception
     {
         List<Byte> leb = getUnsignedLeb128(value.length());
+        byte[] chars = value.getBytes();
 
-        BufferedOutputStream bos = new BufferedOutputStream(stream);
-
-        for (Byte b : leb)
-        {
-            bos.write(b);
-        }
-
-        for (byte b : value.getBytes())
-        {
-            bos.write(b);
-        }
-        bos.flush();
-    }
-
-    /**
-     * Read a single byte from the stream
-     * 
-     * @return read byte
-     */
-    public static int readByte(InputStream stream) throws Exception
-    {
-        return stream.read();
-    }
-
-    /**
-     * Read a short from the stream
-     * 
-     * @return int
-     */
-    public static int readShort(InputStream stream) throws Exception
-    {
-        byte[] buffer = new byte[8];
-        DataInputStream dis = new DataInputStream(stream);
-        dis.readFully(buffer, 0, 2);
-        return ((buffer[1] & 0xff) << 8 | (buffer[0] & 0xff));
-    }
-
-    /**
-     * Read an int from the stream
-     * 
-     * @return long
-     */
-    public static long readInt(InputStream stream) throws Exception
-    {
-        byte[] buffer = new byte[8];
-        DataInputStream dis = new DataInputStream(stream);
-        dis.readFully(buffer, 0, 4);
-        int intval = ((buffer[1] & 0xff) << 8 | (buffer[0] & 0xff))
-                | (buffer[2] & 0xff) << 16 | (buffer[3] & 0xff) << 24;
-
-        long val = Integer.toUnsignedLong(intval);
-        return val;
-    }
-
-    /**
-     * Read a string from the stream
-     * 
-     * @param int length to read
-     * @return String
-     */
-    public static String readString(InputStream stream, int length)
-            throws Exception
-    {
-        BufferedInputStream bis = new BufferedInputStream(stream);
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        for (int i = 0; i < length; i++)
-        {
-            buf.write((byte) bis.read());
-        }
-        return buf.toString(StandardCharsets.US_ASCII.displayName());
-    }
-
-    /**
-     * Read butes from the stream
-     * 
-     * @param InputStream stream
-     * @param int length to read
-     * @return byte[]
-     */
-    public static byte[] readBytes(InputStream stream, int length)
-            throws Exception
-    {
-        byte[] bytes = new byte[length];
-        for (int i = 0; i < length; i++)
+        byte[] buffer = new byte[leb.size() + chars.length];
+        for (int i = 0; i < leb.size(); i++)
         {
-            bytes[i] = ConversionUtils.byteVal(stream.read());
+            buffer[i] = leb.get(i);
         }
-
-        return bytes;
+        System.arraycopy(chars, 0, buffer, leb.size(), chars.length);
+        stream.write(buffer, 0, buffer.length);
     }
 }
@@ -28,6 +28,11 @@ import com.lenderman.nabu.adapter.model.settings.Settings;
 
 public class WebUtils
 {
+    /**
+     * Longest wait to connect, and for each read, in milliseconds
+     */
+    public static final int DefaultTimeoutMillis = 10000;
+
     /**
      * Helper method to open a Web Client
      * 
@@ -35,9 +40,24 @@ public class WebUtils
      * @return URLConnection
      */
     public static URLConnection openWebClient(String url) throws Exception
+    {
+        return openWebClient(url, DefaultTimeoutMillis);
+    }
+
+    /**
+     * Helper method to open a Web Client that gives up on a stalled server
+     * 
+     * @param String url
+     * @param int timeoutMillis longest wait to connect, and for each read
+     * @return URLConnection
+     */
+    public static URLConnection openWebClient(String url, int timeoutMillis)
+            throws Exception
     {
         URL myURL = new URL(url);
         URLConnection webClient = myURL.openConnection();
+        webClient.setConnectTimeout(timeoutMillis);
+        webClient.setReadTimeout(timeoutMillis);
         webClient.addRequestProperty("user-agent", "JavaNabuAdapter");
         webClient.addRequestProperty("Content-Type",
                 "application/octet-stream");